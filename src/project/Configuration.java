@@ -1,17 +1,60 @@
 package project;
 
+import project.connection.ConnectionEngine;
+import project.storage.Preallocation;
+
+import java.util.Map;
+
 public class Configuration {
 
+    /*
+     * The first six rows of the configuration file are mandatory and positional.
+     * Any row after them is an optional "Name Value" setting, and a missing setting falls back to its default value.
+     */
+
+    private static final int DEFAULT_RESUME_SYNC_INTERVAL = 16;
+    private static final int DEFAULT_MAX_CORRUPT_PIECES = 3;
+    private static final int DEFAULT_FSYNC_BATCH_SIZE = 16;
+    private static final long DEFAULT_FSYNC_MAX_DELAY = 100;
+    private static final int DEFAULT_REQUEST_PIPELINE_DEPTH = 5;
+    private static final int DEFAULT_MIN_REQUEST_PIPELINE_DEPTH = 2;
+    private static final int DEFAULT_MAX_REQUEST_PIPELINE_DEPTH = 64;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 10000;
+    private static final int DEFAULT_ENDGAME_THRESHOLD = 0;
+    private static final int DEFAULT_BLOCK_SIZE = 16384;
+    private static final int DEFAULT_READ_AHEAD_PIECES = 16;
+    private static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors();
+
     private final int numberOfPreferredNeighbors;
     private final int unchokingInterval;
     private final int optimisticUnchokingInterval;
     private final String fileName;
-    private final int fileSize;
+    private final long fileSize;
     private final int pieceSize;
     private final int numberOfPieces;
 
+    private final boolean resumeEnabled;
+    private final int resumeSyncInterval;
+    private final int maxCorruptPieces;
+    private final boolean verifyOnStartup;
+    private final long pieceCacheSize;
+    private final int fsyncBatchSize;
+    private final long fsyncMaxDelay;
+    private final Preallocation preallocation;
+    private final int requestPipelineDepth;
+    private final int minRequestPipelineDepth;
+    private final int maxRequestPipelineDepth;
+    private final long requestTimeout;
+    private final int endgameThreshold;
+    private final int blockSize;
+    private final int blocksPerPiece;
+    private final int readAheadPieces;
+    private final ConnectionEngine connectionEngine;
+    private final int ioThreads;
+
     public Configuration(int numberOfPreferredNeighbors, int unchokingInterval,
-                         int optimisticUnchokingInterval, String fileName, int fileSize, int pieceSize) {
+                         int optimisticUnchokingInterval, String fileName, long fileSize, int pieceSize,
+                         Map<String, String> options) {
 
         this.numberOfPreferredNeighbors = numberOfPreferredNeighbors;
         this.unchokingInterval = unchokingInterval;
@@ -19,7 +62,61 @@ public class Configuration {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
-        this.numberOfPieces = (int) Math.ceil((double) this.fileSize / this.pieceSize);
+
+        // Sizes and offsets in the file are 64-bit, but the number of pieces has to fit in a bitfield
+        long numberOfPieces = (this.fileSize + this.pieceSize - 1) / this.pieceSize;
+        if (numberOfPieces > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The file has too many pieces, use a bigger piece size");
+        }
+        this.numberOfPieces = (int) numberOfPieces;
+
+        this.resumeEnabled = getBooleanOption(options, "Resume", false);
+        this.resumeSyncInterval = getIntOption(options, "ResumeSyncInterval", DEFAULT_RESUME_SYNC_INTERVAL);
+        this.maxCorruptPieces = getIntOption(options, "MaxCorruptPieces", DEFAULT_MAX_CORRUPT_PIECES);
+        this.verifyOnStartup = getBooleanOption(options, "VerifyOnStartup", false);
+        this.pieceCacheSize = getLongOption(options, "PieceCacheSize", 0);
+        this.fsyncBatchSize = getIntOption(options, "FsyncBatchSize", DEFAULT_FSYNC_BATCH_SIZE);
+        this.fsyncMaxDelay = getLongOption(options, "FsyncMaxDelay", DEFAULT_FSYNC_MAX_DELAY);
+        this.preallocation = options.containsKey("Preallocation")
+                ? Preallocation.fromName(options.get("Preallocation"))
+                : Preallocation.SPARSE;
+        this.minRequestPipelineDepth = getIntOption(options, "MinRequestPipelineDepth",
+                DEFAULT_MIN_REQUEST_PIPELINE_DEPTH);
+        this.maxRequestPipelineDepth = getIntOption(options, "MaxRequestPipelineDepth",
+                DEFAULT_MAX_REQUEST_PIPELINE_DEPTH);
+        if (this.minRequestPipelineDepth < 1 || this.maxRequestPipelineDepth < this.minRequestPipelineDepth) {
+            throw new IllegalArgumentException("MinRequestPipelineDepth must be at least 1, and at most " +
+                    "MaxRequestPipelineDepth");
+        }
+        // The initial depth is kept within the bounds, so a lone MinRequestPipelineDepth or MaxRequestPipelineDepth
+        // setting doesn't conflict with the default
+        this.requestPipelineDepth = Math.max(this.minRequestPipelineDepth, Math.min(this.maxRequestPipelineDepth,
+                getIntOption(options, "RequestPipelineDepth", DEFAULT_REQUEST_PIPELINE_DEPTH)));
+        this.requestTimeout = getLongOption(options, "RequestTimeout", DEFAULT_REQUEST_TIMEOUT);
+        if (this.requestTimeout < 1) {
+            throw new IllegalArgumentException("RequestTimeout must be at least 1");
+        }
+        this.endgameThreshold = getIntOption(options, "EndgameThreshold", DEFAULT_ENDGAME_THRESHOLD);
+        this.blockSize = Math.min(this.pieceSize, getIntOption(options, "BlockSize", DEFAULT_BLOCK_SIZE));
+        if (this.blockSize < 0) {
+            throw new IllegalArgumentException("BlockSize must be at least 0");
+        }
+        // Blocks are identified by a single index over the whole file, so the number of blocks has to fit in an int
+        this.blocksPerPiece = this.blockSize == 0 ? 1 : (this.pieceSize + this.blockSize - 1) / this.blockSize;
+        if ((long) this.blocksPerPiece * this.numberOfPieces > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The file has too many blocks, use a bigger block size");
+        }
+        this.readAheadPieces = getIntOption(options, "ReadAheadPieces", DEFAULT_READ_AHEAD_PIECES);
+        if (this.readAheadPieces < 0) {
+            throw new IllegalArgumentException("ReadAheadPieces must be at least 0");
+        }
+        this.connectionEngine = options.containsKey("ConnectionEngine")
+                ? ConnectionEngine.fromName(options.get("ConnectionEngine"))
+                : ConnectionEngine.THREADS;
+        this.ioThreads = getIntOption(options, "IoThreads", DEFAULT_IO_THREADS);
+        if (this.ioThreads < 1) {
+            throw new IllegalArgumentException("IoThreads must be at least 1");
+        }
     }
 
 
@@ -39,7 +136,7 @@ public class Configuration {
         return fileName;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
@@ -51,6 +148,190 @@ public class Configuration {
         return numberOfPieces;
     }
 
+    /**
+     * Returns the offset of a piece in the target file
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Offset of the piece's first byte
+     */
+    public long getPieceOffset(int pieceIndex) {
+        return (long) pieceIndex * this.pieceSize;
+    }
+
+    /**
+     * Returns the size of a piece. This is either the configured piece size, or smaller if it's the last,
+     * incomplete piece
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Size of the piece in bytes
+     */
+    public int getPieceLength(int pieceIndex) {
+        return (int) Math.min(this.pieceSize, this.fileSize - this.getPieceOffset(pieceIndex));
+    }
+
+    public boolean isResumeEnabled() {
+        return resumeEnabled;
+    }
+
+    public int getResumeSyncInterval() {
+        return resumeSyncInterval;
+    }
+
+    public int getMaxCorruptPieces() {
+        return maxCorruptPieces;
+    }
+
+    public boolean isVerifyOnStartup() {
+        return verifyOnStartup;
+    }
+
+    /**
+     * Returns the byte budget of the read cache used to serve uploads. 0 disables the cache, in which case uploads
+     * are sent straight from the target file
+     *
+     * @return   Size of the piece cache in bytes
+     */
+    public long getPieceCacheSize() {
+        return pieceCacheSize;
+    }
+
+    /**
+     * Returns the number of written pieces after which the target file is forced to the storage device
+     *
+     * @return   Number of pieces per fsync
+     */
+    public int getFsyncBatchSize() {
+        return fsyncBatchSize;
+    }
+
+    /**
+     * Returns how long a written piece waits at most for the target file to be forced, even if the batch isn't full
+     *
+     * @return   Maximum fsync delay in milliseconds
+     */
+    public long getFsyncMaxDelay() {
+        return fsyncMaxDelay;
+    }
+
+    public Preallocation getPreallocation() {
+        return preallocation;
+    }
+
+    /**
+     * Returns the number of requests a connection keeps outstanding with its remote peer before it measured the
+     * bandwidth-delay product of its link
+     *
+     * @return   Initial number of outstanding requests per connection
+     */
+    public int getRequestPipelineDepth() {
+        return requestPipelineDepth;
+    }
+
+    public int getMinRequestPipelineDepth() {
+        return minRequestPipelineDepth;
+    }
+
+    public int getMaxRequestPipelineDepth() {
+        return maxRequestPipelineDepth;
+    }
+
+    /**
+     * Returns how long a request waits for its piece before it's cancelled and the piece is requested from another
+     * remote peer
+     *
+     * @return   Request timeout in milliseconds
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Returns the number of unrequested pieces at which endgame mode starts, and the pieces that are still
+     * outstanding are requested from every unchoked remote peer that has them. The default of 0 starts endgame
+     * mode once every missing piece is requested, and a negative value disables it.
+     *
+     * @return   Endgame threshold in pieces
+     */
+    public int getEndgameThreshold() {
+        return endgameThreshold;
+    }
+
+    /**
+     * Returns the size of the blocks pieces are requested in from remote peers that support blocks, so a piece can
+     * be received from several remote peers at the same time. 0 disables block requests.
+     *
+     * @return   Block size in bytes, at most the piece size
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlocksPerPiece() {
+        return blocksPerPiece;
+    }
+
+    /**
+     * Returns the index of a block in the whole file, which identifies the block across all pieces
+     *
+     * @param pieceIndex    Index of the piece
+     * @param blockOffset   Offset of the block in the piece
+     * @return              Index of the block
+     */
+    public int getBlockIndex(int pieceIndex, int blockOffset) {
+        return pieceIndex * this.blocksPerPiece + blockOffset / this.blockSize;
+    }
+
+    public int getBlockPieceIndex(int blockIndex) {
+        return blockIndex / this.blocksPerPiece;
+    }
+
+    /**
+     * Returns the offset of a block in its piece
+     *
+     * @param blockIndex   Index of the block, see #getBlockIndex
+     * @return             Offset of the block's first byte in the piece
+     */
+    public int getBlockOffset(int blockIndex) {
+        return (blockIndex % this.blocksPerPiece) * this.blockSize;
+    }
+
+    /**
+     * Returns the size of a block. This is either the configured block size, or smaller if it's the last block of
+     * its piece
+     *
+     * @param blockIndex   Index of the block, see #getBlockIndex
+     * @return             Size of the block in bytes
+     */
+    public int getBlockLength(int blockIndex) {
+        return Math.min(this.blockSize,
+                this.getPieceLength(this.getBlockPieceIndex(blockIndex)) - this.getBlockOffset(blockIndex));
+    }
+
+    /**
+     * Returns the number of pieces after the position of an open download stream that are requested before any
+     * other piece, so a consumer reading the file while it's being downloaded rarely has to wait. 0 keeps the rarest
+     * first order even while streams are open.
+     *
+     * @return   Read-ahead window in pieces
+     */
+    public int getReadAheadPieces() {
+        return readAheadPieces;
+    }
+
+    public ConnectionEngine getConnectionEngine() {
+        return connectionEngine;
+    }
+
+    /**
+     * Returns the number of I/O threads all connections share with the selector connection engine. Defaults to the
+     * number of available processors.
+     *
+     * @return   Number of I/O threads
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
 
     public String toString() {
         return "[CONFIGURATION] - Number of Preferred Neighbors: " + this.getNumberOfPreferredNeighbors() + "\n" +
@@ -59,6 +340,66 @@ public class Configuration {
                 "[CONFIGURATION] - File Name: " + this.getFileName() + "\n" +
                 "[CONFIGURATION] - File Size: " + this.getFileSize() + "\n" +
                 "[CONFIGURATION] - Piece Size: " + this.getPieceSize() + "\n" +
-                "[CONFIGURATION] - Number of Pieces: " + this.getNumberOfPieces() + "\n";
+                "[CONFIGURATION] - Number of Pieces: " + this.getNumberOfPieces() + "\n" +
+                "[CONFIGURATION] - Resume: " + this.isResumeEnabled() + "\n" +
+                "[CONFIGURATION] - Resume Sync Interval: " + this.getResumeSyncInterval() + "\n" +
+                "[CONFIGURATION] - Max Corrupt Pieces: " + this.getMaxCorruptPieces() + "\n" +
+                "[CONFIGURATION] - Verify On Startup: " + this.isVerifyOnStartup() + "\n" +
+                "[CONFIGURATION] - Piece Cache Size: " + this.getPieceCacheSize() + "\n" +
+                "[CONFIGURATION] - Fsync Batch Size: " + this.getFsyncBatchSize() + "\n" +
+                "[CONFIGURATION] - Fsync Max Delay: " + this.getFsyncMaxDelay() + "\n" +
+                "[CONFIGURATION] - Preallocation: " + this.getPreallocation() + "\n" +
+                "[CONFIGURATION] - Request Pipeline Depth: " + this.getRequestPipelineDepth() + "\n" +
+                "[CONFIGURATION] - Min Request Pipeline Depth: " + this.getMinRequestPipelineDepth() + "\n" +
+                "[CONFIGURATION] - Max Request Pipeline Depth: " + this.getMaxRequestPipelineDepth() + "\n" +
+                "[CONFIGURATION] - Request Timeout: " + this.getRequestTimeout() + "\n" +
+                "[CONFIGURATION] - Endgame Threshold: " + this.getEndgameThreshold() + "\n" +
+                "[CONFIGURATION] - Block Size: " + this.getBlockSize() + "\n" +
+                "[CONFIGURATION] - Read Ahead Pieces: " + this.getReadAheadPieces() + "\n" +
+                "[CONFIGURATION] - Connection Engine: " + this.getConnectionEngine() + "\n" +
+                "[CONFIGURATION] - IO Threads: " + this.getIoThreads() + "\n";
+    }
+
+
+    /**
+     * Returns the value of an optional integer setting
+     *
+     * @param options        Optional settings read from the configuration file
+     * @param name           Name of the setting
+     * @param defaultValue   Value to use if the setting is missing
+     * @return               Value of the setting
+     */
+    private static int getIntOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Returns the value of an optional long setting
+     *
+     * @param options        Optional settings read from the configuration file
+     * @param name           Name of the setting
+     * @param defaultValue   Value to use if the setting is missing
+     * @return               Value of the setting
+     */
+    private static long getLongOption(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Returns the value of an optional boolean setting. Both 1/0 and true/false are accepted.
+     *
+     * @param options        Optional settings read from the configuration file
+     * @param name           Name of the setting
+     * @param defaultValue   Value to use if the setting is missing
+     * @return               Value of the setting
+     */
+    private static boolean getBooleanOption(Map<String, String> options, String name, boolean defaultValue) {
+        String value = options.get(name);
+
+        return value == null ? defaultValue : value.equals("1") || value.equalsIgnoreCase("true");
     }
 }
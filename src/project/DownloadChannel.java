@@ -0,0 +1,171 @@
+package project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+public class DownloadChannel implements SeekableByteChannel {
+
+    /*
+     * Read only channel over the target file, which can be read while the file is still being downloaded.
+     * A read only blocks when the piece at the current position isn't committed yet, and returns as much of the
+     * committed pieces after it as fits in the buffer. Committed pieces are read from their view in the mapped target
+     * file, so reading doesn't copy more than the buffer it fills.
+     * While the channel is open, the local peer requests the pieces right after its position before any other piece,
+     * see LocalPeerManager#choosePieceToRequest.
+     * A channel is meant to be used by a single consumer thread.
+     */
+
+    private final LocalPeerManager localPeerManager;
+    private final Configuration config;
+
+    private volatile long position;
+    private volatile boolean open;
+
+    DownloadChannel(LocalPeerManager localPeerManager) {
+        this.localPeerManager = localPeerManager;
+        this.config = localPeerManager.getConfig();
+
+        this.position = 0;
+        this.open = true;
+    }
+
+
+    /**
+     * Returns the piece at the current position, which is the first piece of the read-ahead window
+     *
+     * @return   Index of the piece
+     */
+    public int getPieceIndex() {
+        return (int) Math.min(this.position / this.config.getPieceSize(), this.config.getNumberOfPieces());
+    }
+
+    /**
+     * Reads from the current position, waiting for the piece at the position to be committed if needed
+     *
+     * @param dst            Buffer to read into
+     * @return               Number of bytes read, -1 at the end of the file
+     * @throws IOException   Throws a ClosedByInterruptException if interrupted while waiting for a piece, in which
+     *                       case the channel is closed. Throws an AsynchronousCloseException if another thread closed
+     *                       the channel while waiting. Throws an IOException if the piece at the current position is
+     *                       skipped (see LocalPeerManager#setPiecePriority), since it's never downloaded
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        this.ensureOpen();
+
+        if (this.position >= this.config.getFileSize()) {
+            return -1;
+        }
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        int pieceIndex = this.getPieceIndex();
+
+        boolean hasPiece;
+
+        try {
+            hasPiece = this.localPeerManager.awaitPiece(pieceIndex, this);
+        } catch (InterruptedException exception) {
+            this.close();
+            Thread.currentThread().interrupt();
+            throw new ClosedByInterruptException();
+        }
+
+        if (!hasPiece && !this.open) {
+            throw new AsynchronousCloseException();
+        }
+
+        if (!hasPiece) {
+            throw new IOException("Tried to read piece " + pieceIndex + ", which is skipped");
+        }
+
+        // Only the first piece is waited for, the read stops at the first piece after it that isn't committed yet
+        int read = 0;
+
+        while (dst.hasRemaining() && pieceIndex < this.config.getNumberOfPieces() &&
+                (read == 0 || this.localPeerManager.hasPiece(pieceIndex))) {
+            ByteBuffer view = this.localPeerManager.getStorage().getPieceView(pieceIndex);
+            view.position((int) (this.position - this.config.getPieceOffset(pieceIndex)));
+            view.limit(Math.min(view.limit(), view.position() + dst.remaining()));
+
+            read += view.remaining();
+            this.position += view.remaining();
+            dst.put(view);
+
+            pieceIndex++;
+        }
+
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        this.ensureOpen();
+
+        return this.position;
+    }
+
+    /**
+     * Moves the position, which moves the read-ahead window along
+     *
+     * @param newPosition    New position. Reading past the end of the file returns -1
+     * @return               This channel
+     * @throws IOException   Throws a ClosedChannelException if the channel is closed
+     */
+    @Override
+    public DownloadChannel position(long newPosition) throws IOException {
+        this.ensureOpen();
+
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Tried to move a download channel to a negative position");
+        }
+
+        this.position = newPosition;
+
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        this.ensureOpen();
+
+        return this.config.getFileSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() {
+        if (this.open) {
+            this.open = false;
+            this.localPeerManager.closeChannel(this);
+        }
+    }
+
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -2,37 +2,65 @@ package project;
 
 import project.connection.ConnectionState;
 import project.connection.PeerConnectionManager;
+import project.connection.RequestWindow;
+import project.connection.SelectorEngine;
 import project.connection.piece.Piece;
+import project.connection.piece.PieceAssembly;
+import project.connection.piece.PieceBitfield;
+import project.connection.piece.PiecePicker;
+import project.connection.piece.PiecePriority;
 import project.connection.piece.PieceStatus;
+import project.connection.piece.PieceStatusArray;
 import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessages.CancelRequestIntMes;
+import project.message.InternalMessage.InternalMessages.CheckTimeoutsIntMes;
 import project.message.InternalMessage.InternalMessages.ChokeThreadIntMes;
+import project.message.InternalMessage.InternalMessages.CommittedIntMes;
 import project.message.InternalMessage.InternalMessages.NewLocalPeiceIntMes;
+import project.message.InternalMessage.InternalMessages.PieceReleasedIntMes;
+import project.message.InternalMessage.InternalMessages.PriorityChangedIntMes;
 import project.message.InternalMessage.InternalMessages.ReceivedIntMes;
 import project.message.InternalMessage.InternalMessages.TerminateIntMes;
 import project.message.InternalMessage.InternalMessages.UnchokeThreadIntMes;
+import project.message.InternalMessage.InternalMessages.VerifiedIntMes;
+import project.storage.BitfieldSidecar;
+import project.storage.BufferPool;
+import project.storage.DiskWriter;
+import project.storage.PieceCache;
+import project.storage.PieceManifest;
+import project.storage.PieceStorage;
+import project.storage.PieceVerifier;
 import project.utils.Logger;
 import project.utils.Tag;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Lock;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -44,6 +72,9 @@ public class LocalPeerManager extends Thread {
 
 
     private static final String DIRECTORY = "peer_%d";
+    private static final String SIDECAR_EXTENSION = ".bitfield";
+    private static final long TERMINATION_TIMEOUT = 5000;
+    private static final int MAX_POOLED_BUFFERS = 64;
 
     private final int localPeerId;
 
@@ -51,8 +82,42 @@ public class LocalPeerManager extends Thread {
     private final Logger logger;
 
     private final ArrayList<PeerConnectionManager> connectedPeers;
+    // I/O loops shared by all connections with the selector connection engine. Started with the first connection
+    private SelectorEngine selectorEngine;
 
     private final Piece[] localPieces;
+    private final PieceStatusArray pieceStatuses;
+    // Pieces received in endgame mode and not committed yet. They're still REQUESTED, but must not be requested again
+    private final Set<Integer> endgameReceivedPieces;
+    // Pieces with a HAVE status, guarded by bitmapLock
+    private PieceBitfield localBitfield;
+    // Picks the rarest piece to request, guarded by pickerLock
+    private PiecePicker piecePicker;
+    // Priority of every piece and the pieces to skip, guarded by the picker lock. The picker shares the priorities
+    private final PiecePriority[] piecePriorities;
+    private final PieceBitfield skippedPieces;
+    private PieceStorage storage;
+    private BitfieldSidecar sidecar;
+    // Commits received pieces to the target file, off the LocalPeerManager thread
+    private DiskWriter diskWriter;
+    // Null if the piece cache is disabled, in which case uploads are sent straight from the target file
+    private PieceCache pieceCache;
+    // Buffers received pieces are read into, given back once the piece is committed or rejected
+    private final BufferPool bufferPool;
+    // Pool of block sized buffers for blocks received from remote peers that support blocks. Null if blocks are
+    // disabled
+    private final BufferPool blockBufferPool;
+    // Pieces being received block by block
+    private final Map<Integer, PieceAssembly> assemblies;
+    // Download channels that are open, the pieces after their positions are requested first
+    private final Set<DownloadChannel> openChannels;
+    // Signalled every time a piece is committed or skipped, or a download channel is closed, for the download
+    // channels waiting for a piece
+    private final Lock commitLock;
+    private final Condition pieceCommitted;
+
+    // Null if there's no piece manifest, in which case received pieces are not verified
+    private final PieceVerifier verifier;
 
     private final BlockingQueue<InternalMessage> incomingControlMessages;
 
@@ -69,12 +134,13 @@ public class LocalPeerManager extends Thread {
      * they are sending their bitfield packet. Other times, when just reading the bitmap it will be done automatically
      */
     private final ReadWriteLock bitmapLock;
-    private final Lock choosePieceLock;
+    // Read locked to pick pieces, write locked to update piece availability or remove local pieces from the picker
+    private final ReadWriteLock pickerLock;
 
     private PeerConnectionManager optimisticallyUnchokedPeer;
     private boolean hasDumpedFile;
 
-    public LocalPeerManager(int localPeerId, Configuration config) {
+    public LocalPeerManager(int localPeerId, Configuration config, PieceManifest manifest) {
         this.incomingControlMessages = new LinkedBlockingQueue<>();
         this.localPeerId = localPeerId;
 
@@ -83,6 +149,19 @@ public class LocalPeerManager extends Thread {
                 File.separator + "log_peer_" + this.localPeerId + ".log").toAbsolutePath().toString());
 
         this.localPieces = new Piece[this.config.getNumberOfPieces()];
+        this.pieceStatuses = new PieceStatusArray(this.config.getNumberOfPieces());
+        this.endgameReceivedPieces = ConcurrentHashMap.newKeySet();
+        this.verifier = manifest == null ? null : new PieceVerifier(manifest);
+        this.bufferPool = new BufferPool(this.config.getPieceSize(), MAX_POOLED_BUFFERS);
+        this.blockBufferPool = this.config.getBlockSize() == 0 ? null :
+                new BufferPool(this.config.getBlockSize(), MAX_POOLED_BUFFERS);
+        this.assemblies = new ConcurrentHashMap<>();
+        this.openChannels = ConcurrentHashMap.newKeySet();
+        this.piecePriorities = new PiecePriority[this.config.getNumberOfPieces()];
+        Arrays.fill(this.piecePriorities, PiecePriority.NORMAL);
+        this.skippedPieces = new PieceBitfield(this.config.getNumberOfPieces());
+        this.commitLock = new ReentrantLock();
+        this.pieceCommitted = this.commitLock.newCondition();
         localFileCompleted = false;
         hasDumpedFile = false;
         //we connect to the peers after we create and start this thread
@@ -92,7 +171,7 @@ public class LocalPeerManager extends Thread {
         this.connectedPeers = new ArrayList<>();
 
         this.bitmapLock = new ReentrantReadWriteLock();
-        this.choosePieceLock = new ReentrantLock();
+        this.pickerLock = new ReentrantReadWriteLock();
 
         this.optimisticallyUnchokedPeer = null;
 
@@ -102,6 +181,11 @@ public class LocalPeerManager extends Thread {
         executor.scheduleAtFixedRate(this::reevaluateOptimisticPeer, this.config.getOptimisticUnchokingInterval(),
                 this.config.getOptimisticUnchokingInterval(), TimeUnit.SECONDS);
         executor.scheduleAtFixedRate(this::dumpState, 15, 10, TimeUnit.SECONDS);
+        // Let every connection look for stalled requests, twice per timeout so a request is never left more than
+        // half a timeout past its deadline
+        long timeoutCheckInterval = Math.max(1, this.config.getRequestTimeout() / 2);
+        executor.scheduleAtFixedRate(() -> announce(new CheckTimeoutsIntMes()), timeoutCheckInterval,
+                timeoutCheckInterval, TimeUnit.MILLISECONDS);
     }
 
     public int getLocalPeerId() {
@@ -127,6 +211,52 @@ public class LocalPeerManager extends Thread {
         }
     }
 
+    /**
+     * Returns a snapshot of the pieces the local peer has
+     *
+     * @return   Copy of the local bitfield
+     */
+    public PieceBitfield getLocalBitfield() {
+        try {
+            this.bitmapLock.readLock().lock();
+
+            return this.localBitfield.copy();
+        }
+        finally {
+            this.bitmapLock.readLock().unlock();
+        }
+    }
+
+    public PieceStorage getStorage() {
+        return this.storage;
+    }
+
+    public PieceCache getPieceCache() {
+        return this.pieceCache;
+    }
+
+    /**
+     * Returns the I/O loops of the selector connection engine, starting them on the first call
+     *
+     * @return               The selector engine
+     * @throws IOException   Throws an IOException if a selector can't be opened
+     */
+    public synchronized SelectorEngine getSelectorEngine() throws IOException {
+        if (this.selectorEngine == null) {
+            this.selectorEngine = new SelectorEngine(this.config.getIoThreads());
+        }
+
+        return this.selectorEngine;
+    }
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    public BufferPool getBlockBufferPool() {
+        return this.blockBufferPool;
+    }
+
     public int getLocalPiecesCount() {
         this.bitmapLock.readLock().lock();
         int count = 0;
@@ -141,39 +271,122 @@ public class LocalPeerManager extends Thread {
         return count;
     }
 
-    private void setLocalPiece(int pieceId, PieceStatus status, byte[] content) {
+    private void setLocalPiece(int pieceId, PieceStatus status, ByteBuffer content) {
         Logger.print(Tag.LOCAL_PEER_MANAGER, "Updating piece " + pieceId + " status to " + status.name());
 
         this.bitmapLock.writeLock().lock();
-        this.choosePieceLock.lock();
 
-        if(this.localPieces[pieceId] != null)
-        {
-            if(this.localPieces[pieceId].getStatus() == status)
-            {
-                System.out.println("Tried to set piece " + pieceId + " to " + status + " when it was already in that state");
-                System.out.flush();
-                this.logger.close();
-                System.exit(0);
-            }
+        // The piece might have been received from more than one remote peer (e.g. after a choke cancelled its
+        // request), in which case only the first commit counts
+        if (this.pieceStatuses.getAndSet(pieceId, status) == status) {
+            Logger.print(Tag.LOCAL_PEER_MANAGER, "Tried to set piece " + pieceId + " to " + status +
+                    " when it was already in that state");
+            this.bitmapLock.writeLock().unlock();
+            return;
         }
 
-        // If the local piece with the given id does not exist, create it. Otherwise, update the existing piece
-        if (this.localPieces[pieceId] == null) {
-            this.localPieces[pieceId] = new Piece(status, content);
-        } else {
-            this.localPieces[pieceId].setStatus(status);
-            this.localPieces[pieceId].setContent(content);
-        }
+        this.localPieces[pieceId].setContent(content);
 
         // If the piece status is set to HAVE and announce is true, send an announcement to all connections
         if (status == PieceStatus.HAVE) {
+            this.localBitfield.set(pieceId);
+            this.endgameReceivedPieces.remove(pieceId);
+
+            this.pickerLock.writeLock().lock();
+            this.piecePicker.removePiece(pieceId);
+            this.pickerLock.writeLock().unlock();
+
             announce(new NewLocalPeiceIntMes(pieceId));
+
+            this.signalPieceWaiters();
         }
-        this.choosePieceLock.unlock();
         this.bitmapLock.writeLock().unlock();
     }
 
+    public boolean hasPiece(int pieceIndex) {
+        return this.pieceStatuses.get(pieceIndex) == PieceStatus.HAVE;
+    }
+
+    /**
+     * Waits until the local peer has a piece, i.e. until it's committed to the target file. A skipped piece is never
+     * requested, so waiting for it stops as soon as it's skipped.
+     *
+     * @param pieceIndex              Index of the piece
+     * @return                        Whether the local peer has the piece, false if the piece is skipped
+     * @throws InterruptedException   Throws an InterruptedException if interrupted while waiting
+     */
+    public boolean awaitPiece(int pieceIndex) throws InterruptedException {
+        return this.awaitPiece(pieceIndex, null);
+    }
+
+    /**
+     * Waits until the local peer has a piece on behalf of a download channel, see #awaitPiece(int). Waiting stops as
+     * well once the channel is closed.
+     *
+     * @param pieceIndex              Index of the piece
+     * @param channel                 Channel waiting for the piece, null if there's none
+     * @return                        Whether the local peer has the piece, false if the piece is skipped or the
+     *                                channel is closed
+     * @throws InterruptedException   Throws an InterruptedException if interrupted while waiting
+     */
+    boolean awaitPiece(int pieceIndex, DownloadChannel channel) throws InterruptedException {
+        this.commitLock.lock();
+
+        try {
+            while (!this.hasPiece(pieceIndex)) {
+                if (this.getPiecePriority(pieceIndex) == PiecePriority.SKIP ||
+                        (channel != null && !channel.isOpen())) {
+                    return false;
+                }
+
+                this.pieceCommitted.await();
+            }
+
+            return true;
+        } finally {
+            this.commitLock.unlock();
+        }
+    }
+
+    /**
+     * Opens a channel to read the target file while it's being downloaded, see DownloadChannel.
+     * The pieces in the read-ahead window after the channel's position (Configuration#getReadAheadPieces) are
+     * requested before any other piece until the channel is closed.
+     *
+     * @return   Channel positioned at the start of the file
+     */
+    public DownloadChannel openChannel() {
+        DownloadChannel channel = new DownloadChannel(this);
+        this.openChannels.add(channel);
+
+        return channel;
+    }
+
+    /**
+     * Opens a stream to read the target file from its start while it's being downloaded, see #openChannel
+     *
+     * @return   Stream over a new download channel. Closing it closes the channel
+     */
+    public InputStream openInputStream() {
+        return Channels.newInputStream(this.openChannel());
+    }
+
+    void closeChannel(DownloadChannel channel) {
+        this.openChannels.remove(channel);
+
+        // A reader might be waiting for a piece on the closed channel
+        this.signalPieceWaiters();
+    }
+
+    private void signalPieceWaiters() {
+        this.commitLock.lock();
+        try {
+            this.pieceCommitted.signalAll();
+        } finally {
+            this.commitLock.unlock();
+        }
+    }
+
     // send a message to all peerConnections
     private void announce(InternalMessage message) {
         // Create a copy to avoid modifying a list we're looping over
@@ -206,7 +419,7 @@ public class LocalPeerManager extends Thread {
         Logger.print(Tag.LOCAL_PEER_MANAGER, "Creating a connection between local peer (" + localPeerId +
                 ") and remote peer (" + remotePeerId + ")");
 
-        ConnectionState state = new ConnectionState(remotePeerId);
+        ConnectionState state = new ConnectionState(remotePeerId, new RequestWindow(this.config));
         PeerConnectionManager connectionManager = new PeerConnectionManager(socket, this, state);
 
         this.connectedPeers.add(connectionManager);
@@ -215,92 +428,516 @@ public class LocalPeerManager extends Thread {
     }
 
     /**
-     * Sets up the initial pieces of the targeted file based on whether the local peer has it or not
+     * Sets up the initial pieces of the targeted file based on whether the local peer has it or not.
+     * The target file is memory-mapped, and pieces the local peer has point to their region in the mapping.
+     * If resuming is enabled and the local peer doesn't have the file, the pieces committed by a previous run are
+     * loaded from the bitfield sidecar next to the target file.
+     * If verifying on startup is enabled and there's a piece manifest, only the existing pieces that match the
+     * manifest are marked as local pieces, and the rest are received again.
      *
      * @param hasFile   Whether the local peer has the target file or trying to receive it
      */
     public void setupInitialPieces(boolean hasFile) throws IOException {
-        // If the local peer doesn't have the file, set all local pieces to NOT_HAVE with null content
-        if (!hasFile) {
-            for (int i = 0; i < this.config.getNumberOfPieces(); i++) {
-                this.localPieces[i] = new Piece(PieceStatus.NOT_HAVE, null);
+        String filePath = String.format(DIRECTORY, this.localPeerId) + File.separator + this.config.getFileName();
+        File file = new File((new File(filePath)).getAbsolutePath());
+
+        boolean verifyExistingPieces = this.config.isVerifyOnStartup() && this.verifier != null;
+
+        // A local peer that has the file only reads from it, unless some of its pieces might fail verification and
+        // have to be written again
+        this.storage = new PieceStorage(file, this.config, hasFile && !verifyExistingPieces);
+
+        if (this.config.getPieceCacheSize() > 0) {
+            this.pieceCache = new PieceCache(this.storage, this.config.getPieceCacheSize());
+        }
+
+        BitSet existingPieces = new BitSet();
+
+        if (hasFile) {
+            existingPieces.set(0, this.config.getNumberOfPieces());
+        } else if (this.config.isResumeEnabled()) {
+            this.sidecar = new BitfieldSidecar(new File(file.getPath() + SIDECAR_EXTENSION), this.config, this.storage);
+            existingPieces = this.sidecar.load();
+
+            Logger.print(Tag.LOCAL_PEER_MANAGER, "Resuming with " + existingPieces.cardinality() + " pieces " +
+                    "committed by a previous run");
+        }
+
+        this.diskWriter = new DiskWriter(this.storage, this.sidecar, this.config.getFsyncBatchSize(),
+                this.config.getFsyncMaxDelay());
+        this.diskWriter.start();
+
+        if (verifyExistingPieces && !existingPieces.isEmpty()) {
+            long start = System.currentTimeMillis();
+            int existingCount = existingPieces.cardinality();
+
+            existingPieces = this.verifier.verifyAll(this.storage, existingPieces);
+
+            Logger.print(Tag.CONFIGURATION, "Verified " + existingPieces.cardinality() + " out of " + existingCount +
+                    " existing pieces in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        // Set the existing local pieces to HAVE with a view of their content in the target file, and the rest to
+        // NOT_HAVE with null content
+        for (int i = 0; i < this.config.getNumberOfPieces(); i++) {
+            this.localPieces[i] = existingPieces.get(i)
+                    ? new Piece(i, this.pieceStatuses, PieceStatus.HAVE, this.storage.getPieceView(i))
+                    : new Piece(i, this.pieceStatuses, PieceStatus.NOT_HAVE, null);
+        }
+
+        this.pickerLock.writeLock().lock();
+        this.piecePicker = new PiecePicker(this.localPieces, this.piecePriorities);
+        this.pickerLock.writeLock().unlock();
+
+        this.localBitfield = new PieceBitfield(this.config.getNumberOfPieces());
+        for (int i = existingPieces.nextSetBit(0); i >= 0 && i < this.config.getNumberOfPieces();
+             i = existingPieces.nextSetBit(i + 1)) {
+            this.localBitfield.set(i);
+        }
+    }
+
+    /**
+     * Returns the index of the rarest piece the remote peer has and the local piece doesn't, and claims it by marking
+     * it as requested.
+     * While download channels are open, the first such piece in the read-ahead window of any channel comes first.
+     *
+     * @param remotePieces   Pieces of the remote peer
+     * @return               Chosen piece index, -1 if no such piece
+     */
+    public int choosePieceToRequest(PieceBitfield remotePieces) {
+        // Any number of connections can pick at the same time, the picked piece is claimed with a compare-and-set
+        this.pickerLock.readLock().lock();
+
+        try {
+            if (this.config.getReadAheadPieces() > 0) {
+                for (DownloadChannel channel : this.openChannels) {
+                    int from = channel.getPieceIndex();
+                    int to = (int) Math.min((long) from + this.config.getReadAheadPieces(),
+                            this.config.getNumberOfPieces());
+
+                    int pieceIndex = this.piecePicker.pickInOrder(remotePieces, this.pieceStatuses, from, to);
+                    if (pieceIndex >= 0) {
+                        return pieceIndex;
+                    }
+                }
             }
 
+            return this.piecePicker.pick(remotePieces, this.pieceStatuses);
+        } finally {
+            this.pickerLock.readLock().unlock();
+        }
+    }
+
+    public PiecePriority getPiecePriority(int pieceIndex) {
+        this.pickerLock.readLock().lock();
+
+        try {
+            return this.piecePriorities[pieceIndex];
+        } finally {
+            this.pickerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the priority of a piece, see #setRangePriority
+     *
+     * @param pieceIndex   Index of the piece
+     * @param priority     New priority
+     */
+    public void setPiecePriority(int pieceIndex, PiecePriority priority) {
+        if (pieceIndex < 0 || pieceIndex >= this.config.getNumberOfPieces()) {
+            throw new IllegalArgumentException("Piece " + pieceIndex + " is out of the file's " +
+                    this.config.getNumberOfPieces() + " pieces");
+        }
+
+        this.setPiecePriorities(pieceIndex, pieceIndex + 1, priority);
+    }
+
+    /**
+     * Sets the priority of every piece overlapping a range of the file. Pieces of a higher priority are requested
+     * before any piece of a lower priority, and pieces to skip are not requested at all, and don't make the local
+     * peer interested in remote peers. Outstanding requests of pieces that are now skipped are cancelled.
+     * Pieces the local peer already has keep being shared whatever their priority. Skipped pieces count as done
+     * when checking whether the local peer is done downloading (see #completedTransfer), but they're never announced
+     * or sent to remote peers.
+     *
+     * @param offset     Offset of the range in the file
+     * @param length     Length of the range in bytes
+     * @param priority   New priority
+     */
+    public void setRangePriority(long offset, long length, PiecePriority priority) {
+        if (offset < 0 || length < 0 || offset + length > this.config.getFileSize()) {
+            throw new IllegalArgumentException("Range of " + length + " bytes at offset " + offset + " is out of the " +
+                    "file's " + this.config.getFileSize() + " bytes");
+        }
+
+        if (length == 0) {
             return;
         }
 
-        // Otherwise, read the target file and set all local pieces to HAVE with the matching content
-        byte[] localFileBytes = this.getLocalFileBytes();
+        int firstPiece = (int) (offset / this.config.getPieceSize());
+        int lastPiece = (int) ((offset + length - 1) / this.config.getPieceSize());
 
-        for (int i = 0; i < this.config.getNumberOfPieces(); i++) {
-            // The piece size is either the specified piece size, or smaller if it's an incomplete piece
-            int pieceSize = Math.min(this.config.getPieceSize(),
-                    this.config.getFileSize() - i * this.config.getPieceSize());
-            byte[] pieceContent = new byte[pieceSize];
+        this.setPiecePriorities(firstPiece, lastPiece + 1, priority);
+    }
+
+    private void setPiecePriorities(int fromPiece, int toPiece, PiecePriority priority) {
+        boolean skipChanged = false;
 
-            System.arraycopy(localFileBytes, i * this.config.getPieceSize(), pieceContent, 0, pieceSize);
-            this.localPieces[i] = new Piece(PieceStatus.HAVE, pieceContent);
+        this.pickerLock.writeLock().lock();
+
+        try {
+            for (int i = fromPiece; i < toPiece; i++) {
+                // The priorities are set straight in the array until the picker is set up
+                PiecePriority previous = this.piecePicker != null
+                        ? this.piecePicker.setPriority(i, priority)
+                        : this.piecePriorities[i];
+                this.piecePriorities[i] = priority;
+
+                if (priority == PiecePriority.SKIP && previous != PiecePriority.SKIP) {
+                    this.skippedPieces.set(i);
+                    skipChanged = true;
+                } else if (priority != PiecePriority.SKIP && previous == PiecePriority.SKIP) {
+                    this.skippedPieces.clear(i);
+                    skipChanged = true;
+                }
+            }
+        } finally {
+            this.pickerLock.writeLock().unlock();
+        }
+
+        Logger.print(Tag.LOCAL_PEER_MANAGER, "Set the priority of pieces " + fromPiece + "-" + (toPiece - 1) +
+                " to " + priority);
+
+        // The pieces the connections want from their remote peers changed, and download channels waiting for a
+        // skipped piece stop waiting
+        if (skipChanged) {
+            announce(new PriorityChangedIntMes());
+
+            this.signalPieceWaiters();
         }
     }
 
     /**
-     * Opens the target file and returns its content as a byte array
+     * Returns the pieces the local peer wants from a remote peer: the ones the remote peer has, and the local peer
+     * neither has nor skips
      *
-     * @return               Target file content as a byte array
-     * @throws IOException   Throws an IOException if reading the target file failed
+     * @param remotePieces   Pieces of the remote peer
+     * @return               New bitfield of the wanted pieces
      */
-    private byte[] getLocalFileBytes() throws IOException {
-        String filePath = String.format(DIRECTORY, this.localPeerId) + File.separator + this.config.getFileName();
-        File file = new File((new File(filePath)).getAbsolutePath());
+    public PieceBitfield getWantedPieces(PieceBitfield remotePieces) {
+        this.bitmapLock.readLock().lock();
+        this.pickerLock.readLock().lock();
 
-        byte[] data = new byte[(int) file.length()];
+        try {
+            return remotePieces.andNot(this.localBitfield).andNot(this.skippedPieces);
+        } finally {
+            this.pickerLock.readLock().unlock();
+            this.bitmapLock.readLock().unlock();
+        }
+    }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int bytesRead = fis.read(data);
-        } catch (IOException exception) {
-            throw new IOException(exception);
+    /**
+     * Checks if the local peer wants a piece, see #getWantedPieces
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether the local peer neither has nor skips the piece
+     */
+    public boolean isWantedPiece(int pieceIndex) {
+        return !this.hasPiece(pieceIndex) && this.getPiecePriority(pieceIndex) != PiecePriority.SKIP;
+    }
+
+    /**
+     * Updates the availability of pieces after a remote peer announced its pieces (i.e. with a Bitfield packet)
+     *
+     * @param remotePieces   Pieces of the remote peer
+     */
+    public void addRemotePieces(PieceBitfield remotePieces) {
+        this.pickerLock.writeLock().lock();
+
+        for (int i = remotePieces.nextSetBit(0); i >= 0; i = remotePieces.nextSetBit(i + 1)) {
+            this.piecePicker.increaseAvailability(i);
         }
 
-        return data;
+        this.pickerLock.writeLock().unlock();
     }
 
     /**
-     * Returns the index of a random piece the remote peer has and the local piece doesn't
+     * Updates the availability of a piece after a remote peer announced it has it (i.e. with a Have packet)
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void addRemotePiece(int pieceIndex) {
+        this.pickerLock.writeLock().lock();
+        this.piecePicker.increaseAvailability(pieceIndex);
+        this.pickerLock.writeLock().unlock();
+    }
+
+    /**
+     * Updates the availability of pieces after a remote peer disconnected
      *
      * @param remotePieces   Pieces of the remote peer
-     * @return               Chosen piece index, -1 if no such piece
      */
-    public int choosePieceToRequest(PieceStatus[] remotePieces) {
-        this.choosePieceLock.lock();
+    public void removeRemotePieces(PieceBitfield remotePieces) {
+        this.pickerLock.writeLock().lock();
+
+        for (int i = remotePieces.nextSetBit(0); i >= 0; i = remotePieces.nextSetBit(i + 1)) {
+            this.piecePicker.decreaseAvailability(i);
+        }
+
+        this.pickerLock.writeLock().unlock();
+    }
+
+    /**
+     * Cancels the request of a piece, so it can be requested again
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether the piece was requested. False if it was already cancelled or committed
+     */
+    public boolean cancelPieceRequest(int pieceIndex) {
+        return this.pieceStatuses.compareAndSet(pieceIndex, PieceStatus.REQUESTED, PieceStatus.NOT_HAVE);
+    }
+
+    /**
+     * Checks whether the download is in endgame mode, i.e. at most Configuration#getEndgameThreshold pieces are left
+     * unrequested, in which case pieces requested by a connection are requested from other connections as well
+     *
+     * @return   Whether the local peer is in endgame mode
+     */
+    public boolean isEndgame() {
+        int threshold = this.config.getEndgameThreshold();
 
-        ArrayList<Integer> desired = new ArrayList<>();
+        if (threshold < 0 || this.pieceStatuses.count(PieceStatus.HAVE) == this.pieceStatuses.length()) {
+            return false;
+        }
+
+        int unrequestedCount = this.pieceStatuses.count(PieceStatus.NOT_HAVE);
+
+        if (unrequestedCount <= threshold) {
+            return true;
+        }
 
-        for (int i = 0; i < remotePieces.length; i++) {
-            if (remotePieces[i] == PieceStatus.HAVE && this.localPieces[i].getStatus() == PieceStatus.NOT_HAVE) {
-                desired.add(i);
+        // Skipped pieces are never requested, so they don't count as unrequested pieces. Skipped pieces that are
+        // still requested (i.e. being verified or committed) aren't unrequested in the first place, so only the
+        // skipped pieces without a status are left out. They're only counted when they might make a difference
+        this.pickerLock.readLock().lock();
+        try {
+            if (unrequestedCount - this.piecePicker.getNeededCount(PiecePriority.SKIP) > threshold) {
+                return false;
+            }
+
+            for (int i = this.skippedPieces.nextSetBit(0); i >= 0 && unrequestedCount > threshold;
+                 i = this.skippedPieces.nextSetBit(i + 1)) {
+                if (this.pieceStatuses.get(i) == PieceStatus.NOT_HAVE) {
+                    unrequestedCount--;
+                }
             }
+        } finally {
+            this.pickerLock.readLock().unlock();
         }
 
-        int randomIndex = -1;
+        return unrequestedCount <= threshold;
+    }
+
+    /**
+     * Lets all connections know a piece was received, so the ones that requested it in endgame mode cancel their
+     * requests. Outside of endgame mode no other connection requested the piece, and nothing is sent.
+     *
+     * @param pieceIndex   Index of the received piece
+     */
+    public void cancelDuplicateRequests(int pieceIndex) {
+        if (this.isEndgame()) {
+            this.endgameReceivedPieces.add(pieceIndex);
+            announce(new CancelRequestIntMes(pieceIndex, -1));
+        }
+    }
+
+    /**
+     * Lets all connections know a block was received, see #cancelDuplicateRequests
+     *
+     * @param blockIndex   Index of the received block
+     */
+    public void cancelDuplicateBlockRequests(int blockIndex) {
+        if (this.isEndgame()) {
+            announce(new CancelRequestIntMes(this.config.getBlockPieceIndex(blockIndex), blockIndex));
+        }
+    }
+
+    /**
+     * Checks whether a piece was already received, i.e. the local peer has it, or another connection received it in
+     * endgame mode and it's being verified or committed
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether another copy of the piece isn't needed
+     */
+    public boolean isPieceReceived(int pieceIndex) {
+        return this.hasPiece(pieceIndex) || this.endgameReceivedPieces.contains(pieceIndex);
+    }
+
+    /**
+     * Checks whether a piece can be requested in endgame mode, i.e. it's requested by a connection and wasn't
+     * received yet
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether the piece can be requested again
+     */
+    public boolean isEndgamePiece(int pieceIndex) {
+        // Pieces being assembled are only requested again block by block, see #chooseDuplicateBlock
+        return this.pieceStatuses.get(pieceIndex) == PieceStatus.REQUESTED &&
+                !this.endgameReceivedPieces.contains(pieceIndex) && !this.assemblies.containsKey(pieceIndex);
+    }
+
+    /**
+     * Claims a block to request from a remote peer that supports blocks. The blocks of the pieces that are already
+     * being assembled come first, so a piece is completed (and can be shared) as soon as possible. A new piece is
+     * only claimed, the rarest one as usual, once the remote peer can't help with any of them.
+     *
+     * @param remotePieces   Pieces of the remote peer
+     * @return               Claimed block index, -1 if no such block
+     */
+    public int chooseBlockToRequest(PieceBitfield remotePieces) {
+        for (PieceAssembly assembly : this.assemblies.values()) {
+            if (!remotePieces.get(assembly.getPieceIndex()) || !this.isWantedPiece(assembly.getPieceIndex())) {
+                continue;
+            }
+
+            int block = assembly.claimBlock();
+            if (block >= 0) {
+                return this.config.getBlockIndex(assembly.getPieceIndex(), assembly.getBlockOffset(block));
+            }
+        }
 
-        if (!desired.isEmpty()) {
-            randomIndex = desired.get(random.nextInt(desired.size()));
-            this.localPieces[randomIndex].setStatus(PieceStatus.REQUESTED);
+        int pieceIndex = this.choosePieceToRequest(remotePieces);
+        if (pieceIndex < 0) {
+            return -1;
         }
 
-        this.choosePieceLock.unlock();
+        // The first block is claimed before the assembly is shared, so no other connection can take it meanwhile
+        PieceAssembly assembly = new PieceAssembly(pieceIndex, this.config.getBlockSize(),
+                this.bufferPool.acquire(this.storage.getPieceLength(pieceIndex)));
+        int block = assembly.claimBlock();
+        this.assemblies.put(pieceIndex, assembly);
 
-        return randomIndex;
+        return this.config.getBlockIndex(pieceIndex, assembly.getBlockOffset(block));
     }
 
-    public void cancelPieceRequest(int pieceIndex) {
-        this.choosePieceLock.lock();
-        Piece p = this.localPieces[pieceIndex];
-        if (p.getStatus() != PieceStatus.REQUESTED) {
-            throw new RuntimeException("Tried to cancel peiece request for a peice that isn't requested");
+    /**
+     * Returns a block the remote peer has, that another connection requested and that wasn't received yet, to be
+     * requested once more in endgame mode
+     *
+     * @param remotePieces   Pieces of the remote peer
+     * @param requested      Blocks the connection already requested
+     * @return               Block index, -1 if no such block
+     */
+    public int chooseDuplicateBlock(PieceBitfield remotePieces, IntPredicate requested) {
+        for (PieceAssembly assembly : this.assemblies.values()) {
+            int pieceIndex = assembly.getPieceIndex();
+
+            if (!remotePieces.get(pieceIndex) || !this.isWantedPiece(pieceIndex)) {
+                continue;
+            }
+
+            int block = assembly.findRequestedBlock(b ->
+                    requested.test(this.config.getBlockIndex(pieceIndex, assembly.getBlockOffset(b))));
+            if (block >= 0) {
+                return this.config.getBlockIndex(pieceIndex, assembly.getBlockOffset(block));
+            }
         }
-        p.setStatus(PieceStatus.NOT_HAVE);
-        this.choosePieceLock.unlock();
+
+        return -1;
+    }
+
+    /**
+     * Copies a received block into its piece. Once all blocks of the piece are received, the piece goes through the
+     * same path as a piece received at once (see ReceivedIntMes), with the remote peer that sent the last block as
+     * its source.
+     * Blocks of pieces that aren't being assembled (i.e. already complete) are dropped.
+     * Blocks with a wrong offset or length are rejected, and the remote peer that sent them is penalized the same way
+     * as for a corrupt piece (see #rejectPiece). The caller releases the block if it was requested.
+     *
+     * @param pieceIndex    Index of the piece
+     * @param blockOffset   Offset of the block in the piece
+     * @param content       Content of the block. It's copied, so the caller keeps the buffer
+     * @param srcPeerId     ID of the remote peer the block was received from
+     * @return              Whether the block was valid. Dropped blocks are valid
+     */
+    public boolean receiveBlock(int pieceIndex, int blockOffset, ByteBuffer content, int srcPeerId) {
+        PieceAssembly assembly = this.assemblies.get(pieceIndex);
+
+        if (assembly == null) {
+            Logger.print(Tag.LOCAL_PEER_MANAGER, "Dropping a block of piece " + pieceIndex + " from peer " +
+                    srcPeerId + ", the piece isn't being assembled");
+            return true;
+        }
+
+        int block = blockOffset / this.config.getBlockSize();
+
+        if (blockOffset < 0 || blockOffset % this.config.getBlockSize() != 0 || block >= assembly.getBlockCount() ||
+                content.remaining() != assembly.getBlockLength(block)) {
+            System.err.println("LocalPeerManager recieved an invalid block of piece " + pieceIndex + " at offset " +
+                    blockOffset + " with " + content.remaining() + " bytes from peer " + srcPeerId);
+            this.penalizePeer(srcPeerId);
+            return false;
+        }
+
+        if (assembly.receiveBlock(block, content)) {
+            this.assemblies.remove(pieceIndex);
+            SendControlMessage(new ReceivedIntMes(pieceIndex, assembly.getContent(), srcPeerId));
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases a requested block so it can be requested again, and lets all connections know about it.
+     * Once no connection is working on the piece, and no connected remote peer that supports blocks has it, the
+     * assembly is dropped and the piece is released as a whole, so remote peers that don't support blocks can
+     * send it. The assembly of a skipped piece is dropped as soon as no connection is working on it.
+     *
+     * @param blockIndex   Index of the block
+     */
+    public void releaseBlock(int blockIndex) {
+        int pieceIndex = this.config.getBlockPieceIndex(blockIndex);
+        PieceAssembly assembly = this.assemblies.get(pieceIndex);
+
+        if (assembly == null) {
+            return;
+        }
+
+        assembly.releaseBlock(this.config.getBlockOffset(blockIndex) / this.config.getBlockSize());
+
+        if ((!this.isWantedPiece(pieceIndex) || !this.hasBlockSource(pieceIndex)) && assembly.abandonIfIdle()) {
+            Logger.print(Tag.LOCAL_PEER_MANAGER, "No remote peer can send the rest of piece " + pieceIndex +
+                    " block by block, or it's skipped, dropping its assembly");
+            this.assemblies.remove(pieceIndex);
+            this.bufferPool.release(assembly.getContent());
+            releasePiece(pieceIndex);
+        } else {
+            announce(new PieceReleasedIntMes(pieceIndex));
+        }
+    }
+
+    private boolean hasBlockSource(int pieceIndex) {
+        for (PeerConnectionManager peer : new ArrayList<>(this.connectedPeers)) {
+            ConnectionState state = peer.getConnectionState();
+
+            if (state.isConnectionActive() && state.isBlockMode() && state.getPieces().get(pieceIndex)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Claims a specific piece by marking it as requested, i.e. when a piece whose request was cancelled is received
+     * after all
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether the piece was claimed. False if it's already requested or committed
+     */
+    public boolean claimPiece(int pieceIndex) {
+        return this.pieceStatuses.compareAndSet(pieceIndex, PieceStatus.NOT_HAVE, PieceStatus.REQUESTED);
     }
 
     /**
@@ -439,7 +1076,7 @@ public class LocalPeerManager extends Thread {
         {
             missingPeer = "Missing pieces for peer " + peer.getConnectionState().getRemotePeerId() + ": ";
             for (int i = 0; i < config.getNumberOfPieces(); i++) {
-                if (peer.getConnectionState().getPieces()[i] != PieceStatus.HAVE) {
+                if (!peer.getConnectionState().getPieces().get(i)) {
                     missingPeer = missingPeer + i + " ";
                 }
             }
@@ -509,9 +1146,9 @@ public class LocalPeerManager extends Thread {
     }
 
     /**
-     * Checks if all pieces were transferred successfully
+     * Checks if all pieces were transferred successfully. Skipped pieces are never transferred, so they count as done
      *
-     * @return   Whether the local peer has all file pieces
+     * @return   Whether the local peer has all file pieces it doesn't skip
      */
     private boolean completedTransfer() {
         // once this returns true once, it will always return true, so we just save the value to avoid recomputing it repeatedly
@@ -519,47 +1156,63 @@ public class LocalPeerManager extends Thread {
         {
             return true;
         }
-        for (Piece piece : this.localPieces) {
-            if (piece == null || piece.getStatus() != PieceStatus.HAVE) {
-                return false;
+
+        boolean skipped = false;
+
+        this.pickerLock.readLock().lock();
+        try {
+            for (int i = 0; i < this.localPieces.length; i++) {
+                Piece piece = this.localPieces[i];
+
+                if (piece == null) {
+                    return false;
+                }
+
+                if (piece.getStatus() != PieceStatus.HAVE) {
+                    if (this.piecePriorities[i] != PiecePriority.SKIP) {
+                        return false;
+                    }
+
+                    skipped = true;
+                }
             }
+        } finally {
+            this.pickerLock.readLock().unlock();
         }
-        localFileCompleted = true;
+
+        // A skipped piece might be wanted again, so the value is only saved once the local peer has every piece
+        localFileCompleted = !skipped;
         return true;
     }
 
     /**
-     * Dumps all the file pieces into a local file by looping over every piece and writing its content
-     * through a byte buffer
+     * Closes the target file. Every piece is already written into the file as soon as it's received, so there's
+     * nothing left to write
      */
     synchronized public void dumpFile() {
         if(this.hasDumpedFile)
         {
             return;
         }
-        String filePath = String.format(DIRECTORY, this.localPeerId) + File.separator + this.config.getFileName();
 
-        File file = new File((new File(filePath)).getAbsolutePath());
+        try {
+            // Let the disk writer commit the pieces it still holds before closing the files under it
+            this.diskWriter.close();
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            if (!file.exists()) {
-                boolean created = file.createNewFile();
-            }
-            else
-            {
-            //    System.out.println("OUTPUT FILE ALREADY EXISTS");
-            }
-            // Write each byte array to the file
-            for (Piece piece : this.localPieces) {
-                fos.write(piece.getContent());
+            if (this.sidecar != null) {
+                this.sidecar.close();
             }
 
-            Logger.print(Tag.LOCAL_PEER_MANAGER, "Dumped all content into the file");
-            this.hasDumpedFile = true;
-            this.logger.log("Peer " + this.localPeerId + " has downloaded the complete file.");
-        } catch (IOException e) {
-            System.err.println("An error occurred when trying to dump the content into the file");
+            this.storage.close();
+        } catch (IOException exception) {
+            System.err.println("An error occurred when trying to close the target file");
+        } catch (InterruptedException exception) {
+            System.err.println("Interrupted while waiting for the disk writer to commit the last pieces");
         }
+
+        Logger.print(Tag.LOCAL_PEER_MANAGER, "Closed the target file");
+        this.hasDumpedFile = true;
+        this.logger.log("Peer " + this.localPeerId + " has downloaded the complete file.");
     }
 
     // used by PeerConnectionManger Threads to send messages to this localpeermanager
@@ -579,12 +1232,12 @@ public class LocalPeerManager extends Thread {
         allPeersConnected.set(true);
         for(PeerConnectionManager peer : this.connectedPeers)
         {
-            while (peer.getConnectionState().getPieces().length == 0) { }
-            if(peer.getConnectionState().getPieces().length != config.getNumberOfPieces())
+            while (peer.getConnectionState().getPieces().length() == 0) { }
+            if(peer.getConnectionState().getPieces().length() != config.getNumberOfPieces())
             {
                 System.out.println(
                         "Peer " + peer.getConnectionState().getRemotePeerId() + " has an invalid number of pieces "
-                                + peer.getConnectionState().getPieces().length + " vs " + config.getNumberOfPieces());
+                                + peer.getConnectionState().getPieces().length() + " vs " + config.getNumberOfPieces());
                 System.out.flush();
                 this.logger.close();
                 System.exit(0);
@@ -603,7 +1256,8 @@ public class LocalPeerManager extends Thread {
         }
         for(PeerConnectionManager peer : this.connectedPeers)
         {
-            if (!peer.getConnectionState().isRemoteComplete()) {
+            // A remote peer that skips pieces never completes, but it closes the connection once it's done
+            if (!peer.getConnectionState().isRemoteComplete() && !peer.getConnectionState().isRemoteClosed()) {
                 return false;
             }
         }
@@ -630,10 +1284,24 @@ public class LocalPeerManager extends Thread {
             throw new RuntimeException(e);
 
         } finally {
-            // terminate all peer connections
+            // terminate all peer connections, and wait for them to send their last packets before exiting
             announce(new TerminateIntMes());
+            for (PeerConnectionManager peerConnection : this.connectedPeers) {
+                try {
+                    peerConnection.awaitTermination(TERMINATION_TIMEOUT);
+                } catch (InterruptedException exception) {
+                    System.err.println("Interrupted while waiting for the connection with peer " +
+                            peerConnection.getConnectionState().getRemotePeerId() + " to terminate");
+                }
+            }
             dumpFile();
             executor.shutdown();
+            if (this.verifier != null) {
+                this.verifier.shutdown();
+            }
+            if (this.pieceCache != null) {
+                Logger.print(Tag.EXITING, this.pieceCache.toString());
+            }
             Logger.print(Tag.EXITING, "Finished all transfers, exiting");
             this.logger.close();
             System.exit(0); // giving up on shutting down cleanly, can fix it later if we really want
@@ -650,10 +1318,41 @@ public class LocalPeerManager extends Thread {
                             "LocalPeerManager recieved a recieved control message with no contents which isn't allowed");
                     throw new UnsupportedOperationException("'Recieved' control message with no contents");
                 }
-                setLocalPiece(recMessage.GetPieceIndex(), PieceStatus.HAVE, recMessage.GetPieceContent());
-                this.logger.log("Peer " + this.getLocalPeerId() +
-                    " has downloaded the piece " + recMessage.GetPieceIndex() + " from " + recMessage.GetSourcePeerId() + "." +
-                    " Now the number of pieces it has is " + this.getLocalPiecesCount() + ".");
+                if (recMessage.GetPieceContent().remaining() != this.storage.getPieceLength(recMessage.GetPieceIndex())) {
+                    System.err.println("LocalPeerManager recieved piece " + recMessage.GetPieceIndex() +
+                            " with an invalid length of " + recMessage.GetPieceContent().remaining() + " bytes");
+                    rejectPiece(recMessage.GetPieceIndex(), recMessage.GetSourcePeerId());
+                    this.bufferPool.release(recMessage.GetPieceContent());
+                    break;
+                }
+
+                // Without a manifest the piece is committed right away, otherwise it's committed once it's verified
+                if (this.verifier == null) {
+                    commitPiece(recMessage.GetPieceIndex(), recMessage.GetPieceContent(), recMessage.GetSourcePeerId());
+                } else {
+                    this.verifier.verifyAsync(recMessage.GetPieceIndex(), recMessage.GetPieceContent(), valid ->
+                            SendControlMessage(new VerifiedIntMes(recMessage.GetPieceIndex(),
+                                    recMessage.GetPieceContent(), recMessage.GetSourcePeerId(), valid)));
+                }
+                break;
+            case VERIFIED:
+                VerifiedIntMes verMessage = (VerifiedIntMes) message;
+                if (verMessage.IsValid()) {
+                    commitPiece(verMessage.GetPieceIndex(), verMessage.GetPieceContent(), verMessage.GetSourcePeerId());
+                } else {
+                    System.err.println("LocalPeerManager recieved piece " + verMessage.GetPieceIndex() + " from peer " +
+                            verMessage.GetSourcePeerId() + " which doesn't match the piece manifest");
+                    rejectPiece(verMessage.GetPieceIndex(), verMessage.GetSourcePeerId());
+                    this.bufferPool.release(verMessage.GetPieceContent());
+                }
+                break;
+            case COMMITTED:
+                CommittedIntMes comMessage = (CommittedIntMes) message;
+                if (comMessage.IsWritten()) {
+                    completePiece(comMessage.GetPieceIndex(), comMessage.GetSourcePeerId());
+                } else {
+                    releasePiece(comMessage.GetPieceIndex());
+                }
                 break;
             default:
                 System.err.println("LocalPeerManager recieved a control message of type " + message.getTypeString()
@@ -662,4 +1361,79 @@ public class LocalPeerManager extends Thread {
                         "Control Message of invalid type " + message.getTypeString() + " in LocalPeerManager");
         }
     }
+
+    /**
+     * Queues a received piece to be committed to the target file by the disk writer. Once the piece is durable,
+     * the disk writer posts a Committed message and the piece is marked as a local piece, see #completePiece.
+     * The content buffer goes back to the buffer pool once the disk writer is done with it.
+     *
+     * @param pieceIndex   Index of the piece
+     * @param content      Content of the piece
+     * @param srcPeerId    ID of the remote peer the piece was received from
+     */
+    private void commitPiece(int pieceIndex, ByteBuffer content, int srcPeerId) {
+        this.diskWriter.submit(pieceIndex, content, written -> {
+            this.bufferPool.release(content);
+            SendControlMessage(new CommittedIntMes(pieceIndex, srcPeerId, written));
+        });
+    }
+
+    /**
+     * Marks a committed piece as a local piece and announces it to all connections.
+     * From now on the piece is read back from the file, so the received content is no longer referenced.
+     *
+     * @param pieceIndex   Index of the piece
+     * @param srcPeerId    ID of the remote peer the piece was received from
+     */
+    private void completePiece(int pieceIndex, int srcPeerId) {
+        setLocalPiece(pieceIndex, PieceStatus.HAVE, this.storage.getPieceView(pieceIndex));
+        this.logger.log("Peer " + this.getLocalPeerId() +
+            " has downloaded the piece " + pieceIndex + " from " + srcPeerId + "." +
+            " Now the number of pieces it has is " + this.getLocalPiecesCount() + ".");
+    }
+
+    /**
+     * Rejects a received piece that is either truncated or corrupt. The piece is requested again, and the remote
+     * peer that sent it is penalized. Once a remote peer sent Configuration#getMaxCorruptPieces bad pieces, the local
+     * peer stops requesting pieces from it.
+     *
+     * @param pieceIndex   Index of the piece
+     * @param srcPeerId    ID of the remote peer the piece was received from
+     */
+    private void rejectPiece(int pieceIndex, int srcPeerId) {
+        this.penalizePeer(srcPeerId);
+
+        releasePiece(pieceIndex);
+    }
+
+    /**
+     * Counts a corrupt piece (or an invalid block) against the remote peer that sent it
+     *
+     * @param srcPeerId   ID of the remote peer
+     */
+    private void penalizePeer(int srcPeerId) {
+        for (PeerConnectionManager peer : new ArrayList<>(this.connectedPeers)) {
+            if (peer.getConnectionState().getRemotePeerId() == srcPeerId) {
+                int corruptPieces = peer.getConnectionState().increaseCorruptPieces();
+
+                if (corruptPieces == this.config.getMaxCorruptPieces()) {
+                    Logger.print(Tag.LOCAL_PEER_MANAGER, "Peer " + srcPeerId + " sent " + corruptPieces +
+                            " corrupt pieces, no longer requesting pieces from it");
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a requested piece so it can be requested again, and lets all connections know about it
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void releasePiece(int pieceIndex) {
+        this.endgameReceivedPieces.remove(pieceIndex);
+
+        if (cancelPieceRequest(pieceIndex)) {
+            announce(new PieceReleasedIntMes(pieceIndex));
+        }
+    }
 }
@@ -1,15 +1,20 @@
 package project;
 
+import project.storage.PieceManifest;
 import project.utils.Logger;
 import project.utils.Tag;
 
 import java.io.*;
 
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import java.nio.file.Paths;
 
@@ -21,6 +26,7 @@ public class PeerProcess {
 
     private final static String COMMON_CONFIG_FILE = "Common.cfg";
     private final static String PEER_INFO_CONFIG_FILE = "PeerInfo.cfg";
+    private final static String PIECE_MANIFEST_FILE = "PieceManifest.cfg";
 
     public static void main(String[] args) {
         if (args.length != 1) {
@@ -31,9 +37,12 @@ public class PeerProcess {
         // Set up the configuration
         Configuration config = setupConfiguration(COMMON_CONFIG_FILE);
 
+        // Set up the piece manifest, if there's one
+        PieceManifest manifest = setupManifest(PIECE_MANIFEST_FILE, config);
+
         // Set up the local peer manager
         int localPeerId = Integer.parseInt(args[0]);
-        LocalPeerManager localPeerManager = new LocalPeerManager(localPeerId, config);
+        LocalPeerManager localPeerManager = new LocalPeerManager(localPeerId, config, manifest);
         localPeerManager.start();
         // Set up all peer connections
         setupPeerConnections(PEER_INFO_CONFIG_FILE, localPeerManager);
@@ -76,18 +85,30 @@ public class PeerProcess {
         try (Stream<String> stream = Files.lines(Paths.get(configurationPath))) {
             String[] rows = stream.map(line -> line.replaceAll("\r", "")).toArray(String[]::new);
 
+            // Rows after the mandatory ones hold optional settings
+            Map<String, String> options = new HashMap<>();
+            for (int i = 6; i < rows.length; i++) {
+                String[] option = rows[i].trim().split("\\s+");
+
+                if (option.length == 2) {
+                    options.put(option[0], option[1]);
+                }
+            }
+
             config = new Configuration(
                     Integer.parseInt(rows[0].split(" ")[1]), // number of preferred neighbors
                     Integer.parseInt(rows[1].split(" ")[1]), // unchoking interval
                     Integer.parseInt(rows[2].split(" ")[1]), // optimistic unchoking interval
                     rows[3].split(" ")[1],                   // file name
-                    Integer.parseInt(rows[4].split(" ")[1]), // file size
-                    Integer.parseInt(rows[5].split(" ")[1])  // piece size
+                    Long.parseLong(rows[4].split(" ")[1]),   // file size
+                    Integer.parseInt(rows[5].split(" ")[1]), // piece size
+                    options
             );
 
             System.out.println(config);
-        } catch (NumberFormatException exception) {
+        } catch (IllegalArgumentException exception) {
             System.err.println("An error occurred when trying to parse some values in the given configuration file!");
+            System.err.println(exception.getMessage());
             System.exit(1);
         } catch (IOException exception) {
             System.err.println("An error occurred when trying to open the given configuration file!");
@@ -99,6 +120,32 @@ public class PeerProcess {
         return config;
     }
 
+    /**
+     * Opens the given piece manifest file, used to verify received pieces. The manifest is optional.
+     * In case the manifest exists but is unable to be set up properly, a system exit would execute with code 1.
+     *
+     * @param manifestPath   Path to the piece manifest file to parse
+     * @param config         Configuration the manifest has to match
+     * @return               PieceManifest object, or null if there's no manifest
+     */
+    private static PieceManifest setupManifest(String manifestPath, Configuration config) {
+        PieceManifest manifest = null;
+
+        try {
+            manifest = PieceManifest.load(manifestPath, config);
+        } catch (IOException exception) {
+            System.err.println("An error occurred when trying to open the given piece manifest file!");
+            System.err.println(exception.getMessage());
+            System.exit(1);
+        }
+
+        Logger.print(Tag.CONFIGURATION, manifest == null
+                ? "No piece manifest was found, received pieces won't be verified"
+                : "Loaded the piece manifest, received pieces will be verified");
+
+        return manifest;
+    }
+
     /**
      * Opens the given peer info file and sets up all connections to all other peers.
      * In case the connections are unable to be set up properly, a system exit would execute with code 1.
@@ -177,8 +224,9 @@ public class PeerProcess {
             Logger.print(Tag.CLIENT, "Attempting to connect to peer " +
                     peer.peerId + " at host " + peer.hostname + ":" + peer.port);
 
-            Socket socket = new Socket(peer.hostname, peer.port);
-            localPeerManager.connectToPeer(peer.peerId, socket).start();
+            // The socket is opened through a channel, which allows sending pieces straight from the target file
+            Socket socket = SocketChannel.open(new InetSocketAddress(peer.hostname, peer.port)).socket();
+            localPeerManager.connectToPeer(peer.peerId, socket).open();
         } catch (IOException exception) {
             System.err.println("An error occurred when trying to connect to a remote peer");
             System.err.println(exception);
@@ -198,15 +246,17 @@ public class PeerProcess {
     private static void listenToIncomingConnections(LocalPeerManager localPeerManager, int localPort,
                                                     int expectedConnections) {
         try {
-            try (ServerSocket listener = new ServerSocket(localPort)) {
+            try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                listener.bind(new InetSocketAddress(localPort));
                 Logger.print(Tag.CLIENT, "Listening to incoming connections on port " + localPort);
 
                 while (expectedConnections > 0) {
-                    Socket socket = listener.accept();
+                    // Accepted sockets are backed by a channel, which allows sending pieces straight from the target file
+                    Socket socket = listener.accept().socket();
 
                     Logger.print(Tag.CLIENT, "Attempting to accept a connection from an unknown remote peer");
 
-                    localPeerManager.connectToPeer(socket).start();
+                    localPeerManager.connectToPeer(socket).open();
 
                     expectedConnections--;
                 }
@@ -0,0 +1,30 @@
+package project.connection;
+
+public enum ConnectionEngine {
+
+    // Every connection has a manager, a sender and a listener thread, doing blocking I/O on its socket
+    THREADS,
+    // Same as THREADS, but on virtual threads, which don't reserve a platform thread's stack for every connection.
+    // Needs Java 21, connections run on platform threads with older runtimes
+    VIRTUAL_THREADS,
+    // All connections share a few I/O threads, each multiplexing non-blocking sockets with a selector. The packets of
+    // a connection are handled on its I/O thread as well, see SelectorEngine
+    SELECTOR;
+
+
+    /**
+     * Given the name of a connection engine (case insensitive), return a matching ConnectionEngine object
+     *
+     * @param name   Name of the connection engine
+     * @return       ConnectionEngine object matching the given name
+     */
+    public static ConnectionEngine fromName(String name) {
+        for (ConnectionEngine engine : ConnectionEngine.values()) {
+            if (engine.name().equalsIgnoreCase(name)) {
+                return engine;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown connection engine " + name);
+    }
+}
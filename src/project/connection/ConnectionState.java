@@ -1,16 +1,27 @@
 package project.connection;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import project.connection.piece.PieceStatus;
+import project.connection.piece.PieceBitfield;
 
 public class ConnectionState {
 
     private int remotePeerId;
-    private PieceStatus[] pieces;
+    // Empty until the remote peer's Bitfield packet is received
+    private volatile PieceBitfield pieces;
+
+    // Pieces the remote peer has and the local peer still needs. These are only changed by the connection's manager
+    // thread, on remote Bitfield/Have packets and local commits
+    private PieceBitfield wantedPieces;
 
     private final AtomicBoolean connectionActive;
     private final AtomicBoolean sentBitfield;
@@ -22,18 +33,36 @@ public class ConnectionState {
 
     private AtomicBoolean interested;
     private AtomicBoolean localInterestedIn;
+    // Bytes received from the remote peer since the last reevaluation of the unchoked peers
     private AtomicInteger downloadSpeed;
-
-    private AtomicBoolean pieceRequested;
-    private AtomicInteger requestedPieceID;
+    private AtomicInteger corruptPieces;
+    // Set once a request to the remote peer timed out, until it answers a request in time again. A slow remote peer
+    // only gets a single outstanding request, so it can't hold many pieces back
+    private volatile boolean slow;
+    // Set once both peers announced support for blocks, after which Request, Piece and Cancel packets are for single
+    // blocks of pieces
+    private volatile boolean blockMode;
+    // Set once the remote peer closed the connection, i.e. it exited (possibly with skipped pieces)
+    private volatile boolean remoteClosed;
+
+    // Pieces requested from the remote peer and not received yet, and when each request was sent (System#nanoTime).
+    // In block mode these are block indexes (see Configuration#getBlockIndex) instead of piece indexes.
+    // Only accessed by the connection's manager thread
+    private final LinkedHashMap<Integer, Long> outstandingRequests;
+    // Outstanding requests sent in endgame mode for pieces another connection claimed. Their pieces must not be
+    // released when the requests are dropped, since the claim isn't this connection's
+    private final Set<Integer> duplicateRequests;
+    // Number of requests to keep outstanding, sized from the measured bandwidth-delay product
+    private final RequestWindow requestWindow;
 
     // A variable used to tell if the local peer connected to this, remote peer, or vice versa.
     private boolean localConnectedToRemote;
 
 
-    public ConnectionState(int remotePeerId) {
+    public ConnectionState(int remotePeerId, RequestWindow requestWindow) {
         this.remotePeerId = remotePeerId;
-        this.pieces = new PieceStatus[0];
+        this.pieces = new PieceBitfield(0);
+        this.wantedPieces = new PieceBitfield(0);
 
         // Assume that the local peer choked all remote peers, meaning local peer can't send anything to anyone.
         // Every K seconds, there's a reevaluation in which the local peer unchokes certain remote peers, and then its
@@ -47,12 +76,16 @@ public class ConnectionState {
         this.interested = new AtomicBoolean(false);
         this.localInterestedIn = new AtomicBoolean(false);
         this.downloadSpeed = new AtomicInteger(0);
+        this.corruptPieces = new AtomicInteger(0);
+        this.slow = false;
+        this.blockMode = false;
 
         this.connectionActive = new AtomicBoolean(true);
         this.sentBitfield = new AtomicBoolean(false);
 
-        pieceRequested = new AtomicBoolean(false);
-        requestedPieceID = new AtomicInteger(-1);
+        this.outstandingRequests = new LinkedHashMap<>();
+        this.duplicateRequests = new HashSet<>();
+        this.requestWindow = requestWindow;
     
        this.handshakeLock = new ReentrantLock();
 
@@ -111,41 +144,162 @@ public class ConnectionState {
         this.downloadSpeed.set(0);
     }
 
-    public void increaseDownloadSpeed() {
-        this.downloadSpeed.incrementAndGet();
+    public void increaseDownloadSpeed(int bytes) {
+        this.downloadSpeed.addAndGet(bytes);
+    }
+
+    public int getCorruptPieces() {
+        return this.corruptPieces.get();
+    }
+
+    public int increaseCorruptPieces() {
+        return this.corruptPieces.incrementAndGet();
+    }
+
+    public boolean isBlockMode() {
+        return this.blockMode;
+    }
+
+    public void setBlockMode(boolean blockMode) {
+        this.blockMode = blockMode;
+    }
+
+    public boolean isSlow() {
+        return this.slow;
+    }
+
+    public void setSlow(boolean slow) {
+        this.slow = slow;
     }
 
 
-    public PieceStatus[] getPieces() {
+    public PieceBitfield getPieces() {
         return this.pieces;
     }
 
-    public void setPieces(PieceStatus[] pieces) {
+    public void setPieces(PieceBitfield pieces) {
         this.pieces = pieces;
     }
 
-    public void updatePiece(int ind) {
-        this.pieces[ind] = PieceStatus.HAVE;
+    /**
+     * Marks a piece as one the remote peer has
+     *
+     * @param ind   Index of the piece
+     * @return      Whether the remote peer didn't have the piece before
+     */
+    public boolean updatePiece(int ind) {
+        return this.pieces.set(ind);
     }
 
-    public void setPieceRequested(boolean requested)
-    {
-        this.pieceRequested.set(requested);
+    public PieceBitfield getWantedPieces() {
+        return this.wantedPieces;
     }
 
-    public boolean getPieceRequested()
-    {
-        return this.pieceRequested.get();
+    public int getWantedPiecesCount() {
+        return this.wantedPieces.cardinality();
     }
 
-    public void setPieceRequestedID(int requestedID)
-    {
-        this.requestedPieceID.set(requestedID);
+    public void setWantedPieces(PieceBitfield wantedPieces) {
+        this.wantedPieces = wantedPieces;
     }
 
-    public int getPieceRequestedID()
-    {
-        return this.requestedPieceID.get();
+    /**
+     * Marks a piece as wanted from the remote peer. Marking a piece more than once only counts once.
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void addWantedPiece(int pieceIndex) {
+        this.wantedPieces.set(pieceIndex);
+    }
+
+    /**
+     * Marks a piece as no longer wanted from the remote peer, once the local peer has it.
+     * Pieces that weren't wanted are ignored.
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void removeWantedPiece(int pieceIndex) {
+        if (this.wantedPieces.get(pieceIndex)) {
+            this.wantedPieces.clear(pieceIndex);
+        }
+    }
+
+    public int getOutstandingRequestsCount() {
+        return this.outstandingRequests.size();
+    }
+
+    /**
+     * Returns the pieces requested from the remote peer and not received yet, in the order they were requested
+     *
+     * @return   Copy of the outstanding requests' piece indexes
+     */
+    public List<Integer> getOutstandingRequests() {
+        return new ArrayList<>(this.outstandingRequests.keySet());
+    }
+
+    public boolean isRequestOutstanding(int pieceIndex) {
+        return this.outstandingRequests.containsKey(pieceIndex);
+    }
+
+    public void addOutstandingRequest(int pieceIndex) {
+        this.requestWindow.onRequestSent(this.outstandingRequests.size());
+        this.outstandingRequests.put(pieceIndex, System.nanoTime());
+    }
+
+    /**
+     * Adds an endgame request, for a piece claimed by another connection
+     *
+     * @param pieceIndex   Index of the requested piece
+     */
+    public void addDuplicateRequest(int pieceIndex) {
+        this.addOutstandingRequest(pieceIndex);
+        this.duplicateRequests.add(pieceIndex);
+    }
+
+    public boolean isDuplicateRequest(int pieceIndex) {
+        return this.duplicateRequests.contains(pieceIndex);
+    }
+
+    /**
+     * Removes a request once its piece is received or the request is cancelled
+     *
+     * @param pieceIndex   Index of the requested piece
+     * @return             When the request was sent (System#nanoTime), null if the piece wasn't requested
+     */
+    public Long removeOutstandingRequest(int pieceIndex) {
+        this.duplicateRequests.remove(pieceIndex);
+        return this.outstandingRequests.remove(pieceIndex);
+    }
+
+    /**
+     * Returns the requests that were sent at least the given time ago
+     *
+     * @param timeout   Request timeout in nanoseconds
+     * @return          Piece indexes of the timed out requests, in the order they were requested
+     */
+    public List<Integer> getTimedOutRequests(long timeout) {
+        List<Integer> timedOutRequests = new ArrayList<>();
+        long now = System.nanoTime();
+
+        // Requests are kept in the order they were sent, so the first request that didn't time out ends the search
+        for (Map.Entry<Integer, Long> request : this.outstandingRequests.entrySet()) {
+            if (now - request.getValue() < timeout) {
+                break;
+            }
+
+            timedOutRequests.add(request.getKey());
+        }
+
+        return timedOutRequests;
+    }
+
+    public RequestWindow getRequestWindow() {
+        return this.requestWindow;
+    }
+
+    public void clearOutstandingRequests() {
+        this.duplicateRequests.clear();
+        this.outstandingRequests.clear();
     }
 
     public boolean isConnectionActive() {
@@ -188,18 +342,16 @@ public class ConnectionState {
 
     public boolean isRemoteComplete()
     {
-        // check to make sure we dont incorrectly say this peer is done when it just hasnt had its piece array initialized yet
-        if(pieces.length == 0)
-        {
-            return false;
-        }
-        for(PieceStatus status : pieces)
-        {
-            if (status != PieceStatus.HAVE) {
-                return false;
-            }
-        }
-        return true;
+        // An empty bitfield means the remote peer's Bitfield packet wasn't received yet, not that it's done
+        return this.pieces.isComplete();
+    }
+
+    public boolean isRemoteClosed() {
+        return this.remoteClosed;
+    }
+
+    public void setRemoteClosed() {
+        this.remoteClosed = true;
     }
 
 }
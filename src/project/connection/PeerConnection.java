@@ -1,7 +1,11 @@
 package project.connection;
 
 import project.LocalPeerManager;
+import project.utils.Logger;
+import project.utils.Tag;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.*;
 
 public abstract class PeerConnection extends Thread {
@@ -11,6 +15,10 @@ public abstract class PeerConnection extends Thread {
     protected LocalPeerManager localPeerManager;
     protected ConnectionState state;
 
+    // Thread running the connection: the connection itself, or a virtual thread with the virtual threads connection
+    // engine. Null until the connection is launched
+    private Thread thread;
+
     public PeerConnection(Socket connection, LocalPeerManager localPeerManager, ConnectionState state) {
         this.connection = connection;
 
@@ -26,4 +34,90 @@ public abstract class PeerConnection extends Thread {
     public ConnectionState getConnectionState() {
         return this.state;
     }
+
+    /**
+     * Starts running the connection, on a platform thread (the connection itself) or on a virtual thread, depending
+     * on the connection engine
+     */
+    public void launch() {
+        this.thread = this.localPeerManager.getConfig().getConnectionEngine() == ConnectionEngine.VIRTUAL_THREADS
+                ? VirtualThreads.newThread(this)
+                : this;
+
+        this.thread.start();
+    }
+
+    /**
+     * Names the thread running the connection, once launched
+     *
+     * @param name   Name of the thread
+     */
+    public void setThreadName(String name) {
+        this.thread.setName(name);
+    }
+
+    /**
+     * Waits for the thread running the connection to finish
+     *
+     * @param timeout                 Maximum time to wait in milliseconds, 0 to wait forever
+     * @throws InterruptedException   Throws an InterruptedException if interrupted while waiting
+     */
+    public void joinThread(long timeout) throws InterruptedException {
+        this.thread.join(timeout);
+    }
+
+
+    private static class VirtualThreads {
+
+        /*
+         * Virtual threads need Java 21, while the project builds with Java 17, so they're created through reflection:
+         * Thread.ofVirtual().unstarted(task). If the runtime doesn't have them (or only as a preview feature),
+         * connections run on platform threads instead.
+         * Only loaded with the virtual threads connection engine.
+         */
+
+        private static final Method OF_VIRTUAL;
+        private static final Method UNSTARTED;
+
+        static {
+            Method ofVirtual = null;
+            Method unstarted = null;
+
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+
+                // Fails if virtual threads are a preview feature that isn't enabled
+                ofVirtual.invoke(null);
+            } catch (ReflectiveOperationException exception) {
+                ofVirtual = null;
+                unstarted = null;
+
+                Logger.print(Tag.CONNECTIONS, "Virtual threads are not available (they need Java 21), " +
+                        "connections run on platform threads");
+            }
+
+            OF_VIRTUAL = ofVirtual;
+            UNSTARTED = unstarted;
+        }
+
+        /**
+         * Creates a virtual thread running a task, or a platform thread if virtual threads are not available
+         *
+         * @param task   Task to run
+         * @return       Thread, not started yet
+         */
+        static Thread newThread(Runnable task) {
+            if (OF_VIRTUAL == null) {
+                return new Thread(task);
+            }
+
+            try {
+                // A builder isn't thread safe, so every thread gets its own
+                return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+            } catch (IllegalAccessException | InvocationTargetException exception) {
+                return new Thread(task);
+            }
+        }
+    }
 }
@@ -1,15 +1,19 @@
 package project.connection;
 
+import project.Configuration;
 import project.LocalPeerManager;
-import project.connection.piece.Piece;
-import project.connection.piece.PieceStatus;
+import project.connection.piece.PieceBitfield;
+import project.connection.piece.PiecePriority;
 import project.message.InternalMessage.InternalMessages.ReceivedIntMes;
 import project.message.packet.Packet;
 import project.message.packet.packets.*;
 import project.utils.Logger;
 import project.utils.Tag;
 
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
 
 public class PeerConnectionHandler {
 
@@ -63,6 +67,13 @@ public class PeerConnectionHandler {
             case PIECE:
                 handlePiece((PiecePacket) packet);
                 break;
+            case CANCEL:
+                handleCancel((CancelPacket) packet);
+                break;
+
+            case EXTENSIONS:
+                handleExtensions((ExtensionsPacket) packet);
+                break;
 
             default:
                 break;
@@ -95,12 +106,9 @@ public class PeerConnectionHandler {
         
         this.state.setRemoteChoke(true);
 
-        if(this.state.getPieceRequested())
-        {
-            this.localPeerManager.cancelPieceRequest(this.state.getPieceRequestedID());
-            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " is canceling request for piece " + this.state.getPieceRequestedID() + "due to being choked");
-        }
-        this.state.setPieceRequested(false);
+        // The remote peer drops all pending requests when it chokes, so release all of them so they can be
+        // requested from other peers
+        this.releaseOutstandingRequests();
     }
 
     /**
@@ -129,16 +137,13 @@ public class PeerConnectionHandler {
         }
         this.state.setRemoteChoke(false);
 
-        // handle the edge case where at the start, we sent a request before we were ever unchoked
-        // and then we recieve an unchoke without ever recieveing a choke that would cancel the original request
-        if (this.state.getPieceRequested())
-        {
-            sendRequest(this.state.getPieceRequestedID());
-        }
-        else
+        // handle the edge case where at the start, we sent requests before we were ever unchoked
+        // and then we recieve an unchoke without ever recieveing a choke that would cancel the original requests
+        for (int pieceIndex : this.state.getOutstandingRequests())
         {
-            this.SetInterestAndRequest();
+            sendRequest(pieceIndex);
         }
+        this.SetInterestAndRequest();
     }
 
     /**
@@ -188,13 +193,16 @@ public class PeerConnectionHandler {
      * @param packet   The Bitfield Packet
      */
     private void handleBitfield(BitFieldPacket packet) {
-        PieceStatus[] pieces = PieceStatus.bitsetToPiecesStatus(packet.getBitfield(),
-                this.localPeerManager.getConfig().getNumberOfPieces());
+        PieceBitfield pieces = packet.getBitfield(this.localPeerManager.getConfig().getNumberOfPieces());
 
         Logger.print(Tag.HANDLER, "Received a " + packet.getTypeString() + " from peer " +
                 this.state.getRemotePeerId());
 
         this.state.setPieces(pieces);
+        this.localPeerManager.addRemotePieces(pieces);
+
+        // Wanted pieces are the ones the remote peer has and the local peer lacks (and doesn't skip)
+        this.state.setWantedPieces(this.localPeerManager.getWantedPieces(pieces));
 
         // if(this.hasInterest()) {
         //     this.sendInterested();
@@ -226,7 +234,14 @@ public class PeerConnectionHandler {
         Logger.print(Tag.HANDLER, "Received a " + packet.getTypeString() + " from peer " +
                 this.state.getRemotePeerId() + " for piece " + pieceIndex);
 
-        this.state.updatePiece(pieceIndex);
+        // A remote peer might announce a piece more than once, but it only counts once towards its availability
+        if (this.state.updatePiece(pieceIndex)) {
+            this.localPeerManager.addRemotePiece(pieceIndex);
+
+            if (this.localPeerManager.isWantedPiece(pieceIndex)) {
+                this.state.addWantedPiece(pieceIndex);
+            }
+        }
 
         //         if(this.hasInterest()) {
         //             this.sendInterested();
@@ -270,14 +285,81 @@ public class PeerConnectionHandler {
         int pieceIndex = packet.getPieceIndex();
 
         Logger.print(Tag.HANDLER, "Received a " + packet.getTypeString() + " from peer " +
-                this.state.getRemotePeerId() + " for piece " + pieceIndex);
+                this.state.getRemotePeerId() + " for piece " + pieceIndex +
+                (packet.isBlock() ? " at offset " + packet.getBlockOffset() : ""));
 
         // If the remote peer is not locally choked, it means the local peer can send pieces to it.
-        if(!this.state.isLocalChoked()) {
+        if(this.state.isLocalChoked()) {
+            return;
+        }
+
+        // A block framed Piece packet would be read as a whole piece by a remote peer that didn't announce support
+        // for blocks, so its block requests are ignored
+        if (packet.isBlock() && !this.state.isBlockMode())
+        {
+            System.err.println("Peer " + this.state.getRemotePeerId() + " requested a block of piece " + pieceIndex +
+                    " without announcing support for blocks");
+            return;
+        }
+
+        // In block mode every Piece packet carries a block offset, so a request for the whole piece is answered as a
+        // single block holding all of it
+        if (this.state.isBlockMode())
+        {
+            int pieceLength = this.localPeerManager.getConfig().getPieceLength(pieceIndex);
+            int blockOffset = packet.isBlock() ? packet.getBlockOffset() : 0;
+            int blockLength = packet.isBlock() ? packet.getBlockLength() : pieceLength;
+
+            if (blockOffset < 0 || blockLength <= 0 || (long) blockOffset + blockLength > pieceLength)
+            {
+                System.err.println("Peer " + this.state.getRemotePeerId() + " requested an invalid block of piece " +
+                        pieceIndex + " at offset " + blockOffset + " with " + blockLength + " bytes");
+                return;
+            }
+
+            this.sendPiece(pieceIndex, blockOffset, blockLength);
+        }
+        else
+        {
             this.sendPiece(pieceIndex);
         }
     }
 
+    /**
+     * handles receiving a Cancel packet.
+     * The remote peer sends a Cancel packet when it received a piece it requested from more than one peer
+     * (i.e. in endgame mode), and no longer needs the local peer to send it.
+     * Thus, when receiving a Cancel packet, the Piece packet is dropped if it's still queued.
+     *
+     * @param packet   The Cancel Packet
+     */
+    private void handleCancel(CancelPacket packet) {
+        Logger.print(Tag.HANDLER, "Received a " + packet.getTypeString() + " from peer " +
+                this.state.getRemotePeerId() + " for piece " + packet.getPieceIndex() +
+                (packet.isBlock() ? " at offset " + packet.getBlockOffset() : ""));
+
+        // A request for the whole piece was answered as a block at offset 0 in block mode, see #handleRequest
+        int blockOffset = packet.isBlock() ? packet.getBlockOffset() : (this.state.isBlockMode() ? 0 : -1);
+
+        if (this.peerConnectionManager.removeQueuedPiece(packet.getPieceIndex(), blockOffset)) {
+            Logger.print(Tag.HANDLER, "Dropped the queued piece " + packet.getPieceIndex() + " for peer " +
+                    this.state.getRemotePeerId());
+        }
+    }
+
+    /**
+     * handles receiving an Extensions packet.
+     * The remote peer announces the protocol extensions it supports right before its Bitfield packet. The listener
+     * already applied them to the connection state (see PeerConnectionListener), since they change how the next
+     * packets are read.
+     *
+     * @param packet   The Extensions Packet
+     */
+    private void handleExtensions(ExtensionsPacket packet) {
+        Logger.print(Tag.HANDLER, "Received an " + packet.getTypeString() + " from peer " +
+                this.state.getRemotePeerId() + ", block mode: " + this.state.isBlockMode());
+    }
+
     /**
      * handles receiving a Piece packet.
      * According to the protocol, when local peer is getting a Piece packet from the remote peer, the local peer
@@ -296,31 +378,171 @@ public class PeerConnectionHandler {
 //                " Now the number of pieces it has is " + this.localPeerManager.getLocalPiecesCount() + ".");
 
         Logger.print(Tag.HANDLER, "Received " + packet.getTypeString() + " " + packet.getPieceIndex() + " from peer " +
-                this.state.getRemotePeerId());
+                this.state.getRemotePeerId() + (packet.isBlock() ? " at offset " + packet.getBlockOffset() : ""));
+
+        if (this.state.isBlockMode())
+        {
+            this.handleBlock(packet);
+            return;
+        }
+
+        Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " recieved piece " + packet.getPieceIndex());
+        Long sentTime = this.state.removeOutstandingRequest(packet.getPieceIndex());
+
+        // A piece that isn't outstanding was requested before its request timed out or was cancelled. It's only kept
+        // if no other connection claimed it meanwhile (and the local peer doesn't have it yet), in which case it's
+        // claimed by this connection
+        if (sentTime == null && packet.getPieceIndex() >= 0 &&
+                packet.getPieceIndex() < this.localPeerManager.getConfig().getNumberOfPieces() &&
+                !this.localPeerManager.claimPiece(packet.getPieceIndex()))
+        {
+            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " sent piece " + packet.getPieceIndex() + " after its request was cancelled, dropping it");
+            this.localPeerManager.getBufferPool().release(packet.getPieceContent());
+            this.SetInterestAndRequest();
+            return;
+        }
+
+        // In endgame mode another connection might have received the piece before this connection's request got
+        // cancelled. That copy is already being committed, so this one is dropped rather than committed twice
+        if (sentTime != null && this.localPeerManager.isPieceReceived(packet.getPieceIndex()))
+        {
+            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " sent piece " + packet.getPieceIndex() + " which was already received, dropping it");
+            this.localPeerManager.getBufferPool().release(packet.getPieceContent());
+            this.SetInterestAndRequest();
+            return;
+        }
 
+        // the content belongs to the LocalPeerManager once it's sent, so its length is taken first
+        int pieceLength = packet.getPieceContent().remaining();
 
         // this.localPeerManager.setLocalPiece(packet.getPieceIndex(), PieceStatus.HAVE, packet.getPieceContent());
         this.localPeerManager.SendControlMessage(new ReceivedIntMes(packet.getPieceIndex(), packet.getPieceContent(), this.state.getRemotePeerId()));
-        this.state.increaseDownloadSpeed();
+        this.state.increaseDownloadSpeed(pieceLength);
 
-        // we no longer have a requested piece, as we have recieved the previous one and havent requested another yet
-        Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " recieved piece " + this.state.getPieceRequestedID());
-        this.state.setPieceRequested(false);
+        if (sentTime != null)
+        {
+            // in endgame mode, the other connections that requested this piece cancel their requests
+            this.localPeerManager.cancelDuplicateRequests(packet.getPieceIndex());
+
+            // the remote peer answered in time, and the pipeline is resized from the latency of this request and the
+            // bytes delivered
+            this.state.setSlow(false);
+            this.state.getRequestWindow().onPieceReceived(sentTime, pieceLength);
+            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " request window: " + this.state.getRequestWindow());
+        }
+
+        // the piece is no longer outstanding, so refill the pipeline with another request
         this.SetInterestAndRequest();
 
         // Check if the connection needs to be terminated (both local & remote peers have all pieces)
         // this.localPeerManager.attemptTerminate();
     }
 
+    /**
+     * handles receiving a Piece packet in block mode, which holds a single block of the piece.
+     * The block is copied into the piece it belongs to, which is committed once all of its blocks are received
+     * (possibly from other remote peers), see LocalPeerManager#receiveBlock.
+     *
+     * @param packet   The Piece Packet
+     */
+    private void handleBlock(PiecePacket packet) {
+        int pieceIndex = packet.getPieceIndex();
+        int blockOffset = packet.getBlockOffset();
+        int blockLength = packet.getPieceContent().remaining();
+
+        // A block that doesn't line up with the local blocks was never requested, and it's left to
+        // LocalPeerManager#receiveBlock to reject it
+        Long sentTime = null;
+        int blockIndex = -1;
+        if (pieceIndex >= 0 && pieceIndex < this.localPeerManager.getConfig().getNumberOfPieces() &&
+                blockOffset >= 0 && blockOffset % this.localPeerManager.getConfig().getBlockSize() == 0)
+        {
+            blockIndex = this.localPeerManager.getConfig().getBlockIndex(pieceIndex, blockOffset);
+            sentTime = this.state.removeOutstandingRequest(blockIndex);
+        }
+
+        Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " recieved block " + blockIndex);
+
+        // The block is copied into its piece, so the buffer goes right back to the pool
+        boolean valid = this.localPeerManager.receiveBlock(pieceIndex, blockOffset, packet.getPieceContent(),
+                this.state.getRemotePeerId());
+        this.localPeerManager.getBlockBufferPool().release(packet.getPieceContent());
+        this.state.increaseDownloadSpeed(blockLength);
+
+        // The request was answered with an invalid block, so the block is still missing and has to be requested again
+        if (!valid && sentTime != null)
+        {
+            this.localPeerManager.releaseBlock(blockIndex);
+        }
+        else if (sentTime != null)
+        {
+            this.localPeerManager.cancelDuplicateBlockRequests(blockIndex);
+
+            this.state.setSlow(false);
+            this.state.getRequestWindow().onPieceReceived(sentTime, blockLength);
+            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " request window: " + this.state.getRequestWindow());
+        }
+
+        this.SetInterestAndRequest();
+    }
+
+
+    /**
+     * Cancels the requests the remote peer didn't answer within Configuration#getRequestTimeout, so their pieces
+     * can be requested from other remote peers. The remote peer is marked as slow until it answers a request in time.
+     */
+    public void checkRequestTimeouts() {
+        List<Integer> timedOutRequests = this.state.getTimedOutRequests(
+                this.localPeerManager.getConfig().getRequestTimeout() * 1_000_000L);
+
+        for (int pieceIndex : timedOutRequests)
+        {
+            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " didn't answer the request " + pieceIndex + " in time, canceling it");
+            this.releaseRequest(pieceIndex);
+        }
+
+        if (!timedOutRequests.isEmpty())
+        {
+            this.state.setSlow(true);
+        }
+    }
+
+
+    /**
+     * Announces the protocol extensions the local peer supports, if any. It's sent right before the Bitfield packet,
+     * so it's read before any Request or Piece packet
+     */
+    public void sendExtensions() {
+        int extensions = 0;
+
+        if (this.localPeerManager.getConfig().getBlockSize() > 0) {
+            extensions |= ExtensionsPacket.BLOCKS;
+        }
+
+        if (extensions == 0) {
+            return;
+        }
+
+        Logger.print(Tag.HANDLER, "Preparing an Extensions packet to send to peer " +
+                this.state.getRemotePeerId());
+
+        ExtensionsPacket packet = new ExtensionsPacket();
+        packet.setData(extensions);
+
+        try {
+            this.peerConnectionManager.preparePacket(packet);
+        } catch (InterruptedException exception) {
+            System.err.println("An error occurred when trying to send an Extensions packet to peer " +
+                    this.state.getRemotePeerId());
+        }
+    }
 
     public void sendBitfield() {
         Logger.print(Tag.HANDLER, "Preparing a Bitfield packet to send to peer " +
                 this.state.getRemotePeerId());
 
         BitFieldPacket packet = new BitFieldPacket();
-        BitSet bitset = PieceStatus.piecesToBitset(this.localPeerManager.getLocalPieces());
-
-        packet.setData(bitset);
+        packet.setData(this.localPeerManager.getLocalBitfield());
 
         try {
             this.peerConnectionManager.preparePacket(packet);
@@ -381,6 +603,38 @@ public class PeerConnectionHandler {
         }
     }
 
+    /**
+     * Sends a single block of a piece, in block mode
+     *
+     * @param pieceIndex    Index of the piece
+     * @param blockOffset   Offset of the block in the piece
+     * @param blockLength   Length of the block
+     */
+    public void sendPiece(int pieceIndex, int blockOffset, int blockLength) {
+        Logger.print(Tag.HANDLER, "Preparing a Piece packet to send to peer " +
+                this.state.getRemotePeerId() + " for piece " + pieceIndex + " at offset " + blockOffset);
+
+        ByteBuffer content = this.localPeerManager.getLocalPieces()[pieceIndex].getContent();
+
+        if(content == null) {
+            Logger.print(Tag.DEBUG, "Tried to send a PIECE packet with a piece " + pieceIndex + " local peer doesn't have to peer " +
+                    this.state.getRemotePeerId());
+            return;
+        }
+
+        // The packet holds a view of the block, the sender reads the actual bytes when it gets to the packet
+        PiecePacket packet = new PiecePacket();
+        packet.setData(pieceIndex, blockOffset,
+                content.duplicate().position(blockOffset).limit(blockOffset + blockLength).slice());
+
+        try {
+            this.peerConnectionManager.preparePacket(packet);
+        } catch (InterruptedException exception) {
+            System.err.println("An error occurred when trying to send a Piece packet to peer " +
+                    this.state.getRemotePeerId());
+        }
+    }
+
     public void sendHave(int pieceIndex) {
         Logger.print(Tag.HANDLER, "Preparing a Have packet to send to peer " +
                 this.state.getRemotePeerId() + " for piece " + pieceIndex);
@@ -439,23 +693,61 @@ public class PeerConnectionHandler {
         }
     }
 
-    private void sendRequest(int pieceIndex) {
+    /**
+     * Sends a Cancel packet for an outstanding request
+     *
+     * @param request   The request, a piece index or a block index in block mode
+     */
+    private void sendCancel(int request) {
+        Logger.print(Tag.HANDLER, "Preparing a Cancel packet to send to peer " +
+                this.state.getRemotePeerId() + " for request " + request);
+
+        CancelPacket packet = new CancelPacket();
+        if (this.state.isBlockMode()) {
+            Configuration config = this.localPeerManager.getConfig();
+            packet.setData(config.getBlockPieceIndex(request), config.getBlockOffset(request),
+                    config.getBlockLength(request));
+        } else {
+            packet.setData(request);
+        }
+
+        try {
+            this.peerConnectionManager.preparePacket(packet);
+        } catch (InterruptedException exception) {
+            System.err.println("An error occurred when trying to send a Cancel packet to peer " +
+                    this.state.getRemotePeerId());
+        }
+    }
+
+    /**
+     * Sends a Request packet
+     *
+     * @param request   The request, a piece index or a block index in block mode
+     */
+    private void sendRequest(int request) {
         Logger.print(Tag.HANDLER, "Preparing a Request packet to send to peer " +
-                this.state.getRemotePeerId() + " for piece " + pieceIndex);
+                this.state.getRemotePeerId() + " for request " + request);
 
-        if (pieceIndex == -1) {
+        if (request == -1) {
             System.err.println("Tried to send a REQUEST packet with an invalid piece index");
             return;
         }
+
+        Configuration config = this.localPeerManager.getConfig();
+        int pieceIndex = this.state.isBlockMode() ? config.getBlockPieceIndex(request) : request;
     
-	    if(this.state.getPieces()[pieceIndex] != PieceStatus.HAVE)
+	    if(!this.state.getPieces().get(pieceIndex))
         {
             Logger.print(Tag.DEBUG, "Tried to send a REQUEST packet for a piece " + pieceIndex + " that peer " + this.state.getRemotePeerId() + "doesnt have");
             return;
         }
 
         RequestPacket packet = new RequestPacket();
-        packet.setData(pieceIndex);
+        if (this.state.isBlockMode()) {
+            packet.setData(pieceIndex, config.getBlockOffset(request), config.getBlockLength(request));
+        } else {
+            packet.setData(pieceIndex);
+        }
 
         try {
             this.peerConnectionManager.preparePacket(packet);
@@ -472,16 +764,13 @@ public class PeerConnectionHandler {
      * @return   Whether the remote peer has any pieces the local peer wants
      */
     public boolean hasInterest() {
-        Piece[] local = this.localPeerManager.getLocalPieces();
-        PieceStatus[] remote = this.state.getPieces();
-
-        for (int pieceId = 0; pieceId < Math.min(local.length, remote.length); pieceId++) {
-            if (local[pieceId].getStatus() != PieceStatus.HAVE && remote[pieceId] == PieceStatus.HAVE) {
-                return true;
-            }
+        // Remote peers that sent too many corrupt pieces are not asked for pieces anymore
+        if (this.state.getCorruptPieces() >= this.localPeerManager.getConfig().getMaxCorruptPieces()) {
+            return false;
         }
 
-        return false;
+        // The wanted pieces are tracked as Bitfield/Have packets and local commits come in, see ConnectionState
+        return this.state.getWantedPiecesCount() > 0;
     }
     
     public void SetInterestAndRequest()
@@ -520,20 +809,186 @@ public class PeerConnectionHandler {
         
         if(this.state.isLocalInterestedIn() && !this.state.isRemoteChoked())
         {
-            if(!this.state.getPieceRequested())
+            // Keep enough requests outstanding to cover the bandwidth-delay product of the link, so the remote peer
+            // always has the next piece to send instead of waiting a round trip for the next request.
+            // A slow remote peer only gets a single request at a time
+            int pipelineDepth = this.state.isSlow() ? 1 : this.state.getRequestWindow().getDepth();
+
+            while (this.state.getOutstandingRequestsCount() < pipelineDepth)
+            {
+                // In block mode, pieces are requested block by block, so several remote peers can send the same piece
+                int pieceID = this.state.isBlockMode()
+                        ? this.localPeerManager.chooseBlockToRequest(this.state.getPieces())
+                        : this.localPeerManager.choosePieceToRequest(this.state.getPieces());
+                Logger.print(Tag.REQUESTS, "PeerConnectionHandler " + this.state.getRemotePeerId() + " has " + this.state.getOutstandingRequestsCount() + " requests outstanding, now requesting " + pieceID);
+
+                if (pieceID < 0)
+                {
+                    break;
+                }
+
+                sendRequest(pieceID);
+                this.state.addOutstandingRequest(pieceID);
+            }
+
+            // In endgame mode, the pieces other connections are waiting for are requested as well, so the last
+            // pieces don't depend on the slowest remote peer
+            while (this.state.getOutstandingRequestsCount() < pipelineDepth && this.localPeerManager.isEndgame())
             {
-                int pieceID = this.localPeerManager.choosePieceToRequest(this.state.getPieces());
-                // System.out.println("PeerConnectionHandler " + this.state.getRemotePeerId() + " didn't have a piece requested, now requesting " + pieceID);
-                Logger.print(Tag.REQUESTS, "PeerConnectionHandler " + this.state.getRemotePeerId() + " didn't have a piece requested, now requesting " + pieceID);
+                int pieceID = this.state.isBlockMode()
+                        ? this.localPeerManager.chooseDuplicateBlock(this.state.getPieces(), this.state::isRequestOutstanding)
+                        : chooseDuplicatePiece();
 
-                if (pieceID >= 0)
+                if (pieceID < 0)
                 {
-                    sendRequest(pieceID);
-                    this.state.setPieceRequested(true);
-                    this.state.setPieceRequestedID(pieceID);
+                    break;
                 }
-                
+
+                Logger.print(Tag.REQUESTS, "PeerConnectionHandler " + this.state.getRemotePeerId() + " is in endgame mode, now requesting " + pieceID);
+                sendRequest(pieceID);
+                this.state.addDuplicateRequest(pieceID);
             }
         }
     }
+
+    /**
+     * Cancels the request of a piece (or of a block) another connection received, or that the local peer already has
+     *
+     * @param pieceIndex   Index of the piece
+     * @param blockIndex   Index of the block, -1 to cancel the requests of the whole piece
+     */
+    public void cancelRequest(int pieceIndex, int blockIndex)
+    {
+        if (!this.state.isBlockMode())
+        {
+            // Blocks are only requested in block mode, and the piece is still needed until all of its blocks are in
+            if (blockIndex == -1)
+            {
+                this.cancelOutstandingRequest(pieceIndex);
+            }
+            return;
+        }
+
+        if (blockIndex != -1)
+        {
+            this.cancelOutstandingRequest(blockIndex);
+            return;
+        }
+
+        Configuration config = this.localPeerManager.getConfig();
+        int firstBlock = config.getBlockIndex(pieceIndex, 0);
+
+        for (int block = firstBlock; block < firstBlock + config.getBlocksPerPiece(); block++)
+        {
+            this.cancelOutstandingRequest(block);
+        }
+    }
+
+    private void cancelOutstandingRequest(int request)
+    {
+        if (this.state.removeOutstandingRequest(request) == null)
+        {
+            return;
+        }
+
+        Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " no longer needs to send request " + request + ", canceling it");
+        sendCancel(request);
+    }
+
+    /**
+     * Recomputes the pieces wanted from the remote peer after pieces were skipped or wanted again, and cancels the
+     * outstanding requests of skipped pieces
+     */
+    public void updateWantedPieces()
+    {
+        this.state.setWantedPieces(this.localPeerManager.getWantedPieces(this.state.getPieces()));
+
+        for (int request : this.state.getOutstandingRequests())
+        {
+            int pieceIndex = this.state.isBlockMode()
+                    ? this.localPeerManager.getConfig().getBlockPieceIndex(request)
+                    : request;
+
+            if (this.localPeerManager.getPiecePriority(pieceIndex) == PiecePriority.SKIP)
+            {
+                Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " no longer needs to send request " + request + ", its piece is skipped");
+                sendCancel(request);
+                this.releaseRequest(request);
+            }
+        }
+
+        this.SetInterestAndRequest();
+    }
+
+    /**
+     * Releases all outstanding requests, i.e. when the remote peer chokes the local peer or disconnects
+     */
+    public void releaseOutstandingRequests()
+    {
+        for (int request : this.state.getOutstandingRequests())
+        {
+            Logger.print(Tag.REQUESTS, "Peer " + this.state.getRemotePeerId() + " is canceling request " + request);
+            this.releaseRequest(request);
+        }
+    }
+
+    /**
+     * Removes an outstanding request, and releases its piece (or block) so it can be requested again. The piece of an
+     * endgame request is claimed by another connection, and it's left as is.
+     *
+     * @param request   The request, a piece index or a block index in block mode
+     */
+    private void releaseRequest(int request)
+    {
+        boolean duplicate = this.state.isDuplicateRequest(request);
+        this.state.removeOutstandingRequest(request);
+
+        if (duplicate)
+        {
+            return;
+        }
+
+        if (this.state.isBlockMode())
+        {
+            this.localPeerManager.releaseBlock(request);
+        }
+        else
+        {
+            this.localPeerManager.releasePiece(request);
+        }
+    }
+
+    /**
+     * Returns a piece the remote peer has, that another connection requested and this connection didn't.
+     * The search starts at a random piece, so the connections spread their endgame requests over the pieces.
+     *
+     * @return   Piece index, -1 if no such piece
+     */
+    private int chooseDuplicatePiece()
+    {
+        PieceBitfield wantedPieces = this.state.getWantedPieces();
+
+        if (wantedPieces.cardinality() == 0)
+        {
+            return -1;
+        }
+
+        int start = ThreadLocalRandom.current().nextInt(wantedPieces.length());
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            int from = pass == 0 ? start : 0;
+            int to = pass == 0 ? wantedPieces.length() : start;
+
+            for (int i = wantedPieces.nextSetBit(from); i >= 0 && i < to; i = wantedPieces.nextSetBit(i + 1))
+            {
+                if (this.localPeerManager.isEndgamePiece(i) && !this.state.isRequestOutstanding(i))
+                {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
 }
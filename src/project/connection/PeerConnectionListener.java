@@ -2,7 +2,9 @@ package project.connection;
 
 import project.LocalPeerManager;
 import project.message.packet.Packet;
+import project.message.packet.PacketType;
 import project.message.packet.packets.*;
+import project.storage.BufferPool;
 import project.utils.Logger;
 import project.utils.Tag;
 
@@ -17,7 +19,17 @@ public class PeerConnectionListener extends PeerConnection {
     // private final BlockingQueue<Packet> messageQueue;
     private final PeerConnectionManager manager;
 
+    private static final int LENGTH_FIELD_LENGTH = 4;
+    private static final int TYPE_FIELD_LENGTH = 1;
+    private static final int PIECE_INDEX_FIELD_LENGTH = 4;
+    private static final int BLOCK_OFFSET_FIELD_LENGTH = 4;
+
     private InputStream in;
+    private boolean endOfStream;
+
+    // Reused for the length, type, piece index and block offset fields of every incoming packet
+    private final byte[] header = new byte[LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH +
+            BLOCK_OFFSET_FIELD_LENGTH];
 
     public PeerConnectionListener(Socket connection, LocalPeerManager localPeerManager,
                                   ConnectionState state, PeerConnectionManager manager) {
@@ -41,7 +53,7 @@ public class PeerConnectionListener extends PeerConnection {
             this.state.unlockHandshake();
 
             // Start listening to incoming messages until the connection is closed
-            while (this.state.isConnectionActive()) {
+            while (this.state.isConnectionActive() && !this.endOfStream) {
                 // this.messageQueue.put(this.listenToMessage());
                 this.manager.SendRecievedPacket(this.listenToMessage());
             }
@@ -65,24 +77,95 @@ public class PeerConnectionListener extends PeerConnection {
      * Listen to a single incoming message.
      * This is done by reading 4 bytes, which is the predefined number of bytes for the length header,
      * and then reading ${lengthHeader} bytes where length is the 4-byte value read.
+     * Piece packets are read straight into a pooled buffer, see #listenToPiece.
      *
      * @return   Receive, parsed packet. Unknown if an unknown packet was received.
      */
     private Packet listenToMessage() {
-        // Read the length of the incoming packet
-        byte[] lengthHeaderBytes = this.readBytes(4);
-        int lengthHeader = lengthHeaderBytes == null ? 0 : ByteBuffer.wrap(lengthHeaderBytes).getInt();
+        // Read the length of the incoming packet and its type
+        if (!this.readBytes(this.header, 0, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH)) {
+            return new UnknownPacket();
+        }
+
+        int lengthHeader = ByteBuffer.wrap(this.header, 0, LENGTH_FIELD_LENGTH).getInt();
+        byte type = this.header[LENGTH_FIELD_LENGTH];
 
         if(lengthHeader < 1) {
             return new UnknownPacket();
         }
 
-        // Read 'lengthHeader' bytes, which is the content of the packet
-        byte[] payload = this.readBytes(lengthHeader);
+        // In block mode, Piece packets carry the offset of the block as well
+        int pieceFieldsLength = PIECE_INDEX_FIELD_LENGTH + (this.state.isBlockMode() ? BLOCK_OFFSET_FIELD_LENGTH : 0);
+
+        if (type == PacketType.PIECE.getTypeId() && lengthHeader >= TYPE_FIELD_LENGTH + pieceFieldsLength) {
+            return this.listenToPiece(lengthHeader, pieceFieldsLength);
+        }
+
+        // Read the rest of the 'lengthHeader' bytes, which is the content of the packet
+        byte[] payload = new byte[lengthHeader];
+        payload[0] = type;
+
+        if (!this.readBytes(payload, TYPE_FIELD_LENGTH, lengthHeader - TYPE_FIELD_LENGTH)) {
+            return new UnknownPacket();
+        }
 
         // Create packet from the read payload
         Packet packet = Packet.PacketFromBytes(payload);
 
+        // The remote peer's extensions change how the next packets are read, so they're applied right away rather
+        // than when the manager gets to the packet
+        if (packet.getType() == PacketType.EXTENSIONS) {
+            this.state.setBlockMode(this.localPeerManager.getConfig().getBlockSize() > 0 &&
+                    ((ExtensionsPacket) packet).supports(ExtensionsPacket.BLOCKS));
+        }
+
+        Logger.print(Tag.LISTENER, "Parsed packet of type " + packet.getTypeString() + " from peer " +
+                this.state.getRemotePeerId() + ". Data: " + packet.dataString());
+
+        return packet;
+    }
+
+    /**
+     * Listen to the rest of a Piece packet, after its length and type were read.
+     * The piece content is read straight into a buffer from the local peer's buffer pool, which is given back to the
+     * pool once the piece is committed or rejected, so receiving a piece doesn't allocate.
+     *
+     * In block mode, the content is a single block, and it's read into a block sized buffer instead.
+     *
+     * @param lengthHeader        Length header of the packet
+     * @param pieceFieldsLength   Length of the fields before the content (the piece index, and the block offset)
+     * @return                    Received Piece packet. Unknown if the connection was closed in the middle of the packet.
+     */
+    private Packet listenToPiece(int lengthHeader, int pieceFieldsLength) {
+        if (!this.readBytes(this.header, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH, pieceFieldsLength)) {
+            return new UnknownPacket();
+        }
+
+        ByteBuffer fields = ByteBuffer.wrap(this.header, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH, pieceFieldsLength);
+        int pieceIndex = fields.getInt();
+        int blockOffset = fields.hasRemaining() ? fields.getInt() : -1;
+        int contentLength = lengthHeader - TYPE_FIELD_LENGTH - pieceFieldsLength;
+
+        // A piece bigger than the piece (or block) size is invalid and will be rejected, but it still has to be read
+        // off the stream, so it gets a buffer of its own
+        BufferPool bufferPool = blockOffset == -1
+                ? this.localPeerManager.getBufferPool()
+                : this.localPeerManager.getBlockBufferPool();
+        int bufferSize = blockOffset == -1
+                ? this.localPeerManager.getConfig().getPieceSize()
+                : this.localPeerManager.getConfig().getBlockSize();
+        ByteBuffer content = contentLength <= bufferSize
+                ? bufferPool.acquire(contentLength)
+                : ByteBuffer.allocate(contentLength);
+
+        if (!this.readBytes(content.array(), content.arrayOffset(), contentLength)) {
+            bufferPool.release(content);
+            return new UnknownPacket();
+        }
+
+        PiecePacket packet = new PiecePacket();
+        packet.setData(pieceIndex, blockOffset, content);
+
         Logger.print(Tag.LISTENER, "Parsed packet of type " + packet.getTypeString() + " from peer " +
                 this.state.getRemotePeerId() + ". Data: " + packet.dataString());
 
@@ -96,33 +179,48 @@ public class PeerConnectionListener extends PeerConnection {
      * @return         Read byte array
      */
     private byte[] readBytes(int length) {
+        byte[] message = new byte[length];
+
+        return length > 0 && this.readBytes(message, 0, length) ? message : null;
+    }
+
+    /**
+     * Reads ${length} amount of bytes from the input stream into the given array
+     *
+     * @param target   Array to read into
+     * @param offset   Offset in the array to read into
+     * @param length   Number of bytes to read
+     * @return         Whether all bytes were read
+     */
+    private boolean readBytes(byte[] target, int offset, int length) {
         int nIters = 0;
         int totalread = 0;
         int n;
         try {
-            if(length > 0) {
-                byte[] message = new byte[length];
-                while(totalread < length)
+            while(totalread < length)
+            {
+                n = this.in.read(target, offset + totalread, length - totalread);
+                if (n < 0)
                 {
-                    n = this.in.read(message, totalread, message.length - totalread);
-                    if (n < 0)
-                    {
-                        Logger.print(Tag.LISTENER, "readBytes in " + this.state.getRemotePeerId() + " read nothing (" + nIters + "): " + totalread + " instead of " + length);
-                    }
-                    else if ((totalread += n) != length) {
-                        Logger.print(Tag.LISTENER, "readBytes in " + this.state.getRemotePeerId()
-                                + " read less than expected (" + nIters + "): " + totalread + " instead of " + length);
-                    }
-                    nIters++;
+                    // The remote peer closed the connection, so there's nothing more to read
+                    Logger.print(Tag.LISTENER, "readBytes in " + this.state.getRemotePeerId() + " reached the end of the stream (" + nIters + "): " + totalread + " instead of " + length);
+                    this.endOfStream = true;
+                    this.state.setRemoteClosed();
+                    return false;
+                }
+                else if ((totalread += n) != length) {
+                    Logger.print(Tag.LISTENER, "readBytes in " + this.state.getRemotePeerId()
+                            + " read less than expected (" + nIters + "): " + totalread + " instead of " + length);
                 }
-                return message;
+                nIters++;
             }
+            return true;
         } catch (IOException exception) {
             // this exception should only happen when the connetion is closed, in which case we should be exiting anyways
             // System.err.println("IO Exception In listener " +this.state.getRemotePeerId()+ " \n" +  exception);
             // exception.printStackTrace(System.err);
         }
 
-        return null;
+        return false;
     }
 }
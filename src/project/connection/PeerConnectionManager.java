@@ -5,6 +5,7 @@ import java.net.Socket;
 
 import project.LocalPeerManager;
 import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessages.CancelRequestIntMes;
 import project.message.InternalMessage.InternalMessages.NewLocalPeiceIntMes;
 import project.message.packet.Packet;
 import project.message.packet.PacketType;
@@ -13,21 +14,49 @@ import project.utils.Logger;
 import project.utils.Tag;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class PeerConnectionManager extends PeerConnection {
 
+    /*
+     * Manages a connection with a remote peer: handles its incoming packets and control messages, and queues its
+     * outgoing packets. How the connection's I/O is done depends on the connection engine (see ConnectionEngine):
+     * - THREADS: the manager is a thread of its own, along with a listener thread and a sender thread.
+     * - VIRTUAL_THREADS: same, but the three threads are virtual threads (see PeerConnection#launch). Handing packets
+     *   and control messages over to the manager thread goes through a lock rather than a monitor, so a virtual
+     *   thread waiting for work doesn't pin its carrier thread.
+     * - SELECTOR: the manager has no thread, its queues are processed on the I/O loop of its SelectorConnection,
+     *   which does the listener's and the sender's work as well. The manager thread is never started.
+     * Either way the queues are only ever processed by a single thread at a time.
+     */
+
     private final BlockingQueue<Packet> incomingPacketQueue;
     private final BlockingQueue<Packet> outgoingPacketQueue;
 
     // this is only used until the handshake is recieved, afterwards it is ignored
     private final BlockingQueue<InternalMessage> incomingControlMessageQueue;
+    // Signalled when a packet or a control message is queued, for the manager thread to wake up
+    private final Lock queueLock;
+    private final Condition workAvailable;
 
+    // Null with the selector connection engine
     private final PeerConnectionSender sender;
     private final PeerConnectionListener listener;
 
+    // Null with the threads connection engine, and until the connection is opened
+    private volatile SelectorConnection selectorConnection;
+    // Whether the remote peer's handshake was accepted, only used with the selector connection engine
+    private boolean handshakeAccepted;
+    // Counted down once the connection is closed, only used with the selector connection engine
+    private final CountDownLatch closed;
+
     private final PeerConnectionHandler handler;
 
     public PeerConnectionManager(Socket connection, LocalPeerManager localPeerManager, ConnectionState state) {
@@ -37,9 +66,19 @@ public class PeerConnectionManager extends PeerConnection {
         this.outgoingPacketQueue = new LinkedBlockingQueue<>();
 
         this.incomingControlMessageQueue = new LinkedBlockingQueue<>();
+        this.queueLock = new ReentrantLock();
+        this.workAvailable = this.queueLock.newCondition();
+
+        if (localPeerManager.getConfig().getConnectionEngine() == ConnectionEngine.SELECTOR) {
+            this.sender = null;
+            this.listener = null;
+        } else {
+            this.sender = new PeerConnectionSender(connection, localPeerManager, state, this.outgoingPacketQueue);
+            this.listener = new PeerConnectionListener(connection, localPeerManager, state, this);
+        }
 
-        this.sender = new PeerConnectionSender(connection, localPeerManager, state, this.outgoingPacketQueue);
-        this.listener = new PeerConnectionListener(connection, localPeerManager, state, this);
+        this.handshakeAccepted = false;
+        this.closed = new CountDownLatch(1);
 
         this.handler = new PeerConnectionHandler(this);
     }
@@ -49,57 +88,64 @@ public class PeerConnectionManager extends PeerConnection {
         return this.handler;
     }
 
+    BlockingQueue<Packet> getOutgoingPacketQueue() {
+        return this.outgoingPacketQueue;
+    }
+
+
+    /**
+     * Opens the connection, with the configured connection engine
+     *
+     * @throws IOException   Throws an IOException if the selector connection engine can't be started
+     */
+    public void open() throws IOException {
+        if (this.sender != null) {
+            this.launch();
+            return;
+        }
+
+        this.selectorConnection = this.localPeerManager.getSelectorEngine().register(this,
+                this.connection.getChannel());
+        this.selectorConnection.open();
+    }
+
+    /**
+     * Waits for the connection to be closed once it's terminated
+     *
+     * @param timeout                 Maximum time to wait, in milliseconds
+     * @throws InterruptedException   Throws an InterruptedException if interrupted while waiting
+     */
+    public void awaitTermination(long timeout) throws InterruptedException {
+        if (this.sender != null) {
+            this.joinThread(timeout);
+        } else {
+            this.closed.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
 
     public void run() {
         super.state.lockHandshake();
 
-        this.sender.start();
-        this.listener.start();
+        this.sender.launch();
+        this.listener.launch();
 
         try {
-            // Create first packet to send: handshake packet
-            this.outgoingPacketQueue.put(new HandshakePacket(super.localPeerManager.getLocalPeerId()));
+            this.startHandshake();
 
             // Listen to the first received packet: handshake packet            
             Packet receivedPacket = this.incomingPacketQueue.take();
 
-            if(receivedPacket.getType() != PacketType.HANDSHAKE) {
-                System.err.println("An error occurred when establishing connection with remote peer: " +
-                        "FIRST_PACKET_NOT_HANDSHAKE");
-
-                this.terminate();
+            if (!this.acceptHandshake(receivedPacket)) {
                 return;
             }
 
-            HandshakePacket handshake = (HandshakePacket) receivedPacket;
-            
-            if(!handshake.isValid()) {
-                System.err.println("An error occurred when establishing connection with remote peer: " +
-                        "INVALID_HANDSHAKE");
-
-                this.terminate();
-                return;
-            }
-
-            super.state.setRemotePeerId(handshake.getPeerId());
-            Logger.print(Tag.PEER_CONNECTION_MANAGER, "Handshake received and parsed successfully from peer " + handshake.getPeerId());
             super.state.unlockHandshake();
 
-	        this.setName("Peer " + handshake.getPeerId() + " Manager");
-            sender.setName("Peer " + handshake.getPeerId() + " Sender");
-            listener.setName("Peer " + handshake.getPeerId() + " Listener");
+            this.setThreadName("Peer " + this.state.getRemotePeerId() + " Manager");
+            sender.setThreadName("Peer " + this.state.getRemotePeerId() + " Sender");
+            listener.setThreadName("Peer " + this.state.getRemotePeerId() + " Listener");
 
-            // Log the connection according to who connected to who
-            if(this.state.isLocalConnectedToRemote()) {
-                this.localPeerManager.getLogger().log("Peer " + this.localPeerManager.getLocalPeerId() + " makes a connection to Peer " + this.state.getRemotePeerId() + ".");
-            } else {
-                this.localPeerManager.getLogger().log("Peer " + this.localPeerManager.getLocalPeerId() + " is connected from Peer " + this.state.getRemotePeerId() + ".");
-            }
-
-            // Create and send the second packet: bitfield packet
-            // this.localPeerManager.acquireBitmapLock();
-            this.handler.sendBitfield();
-            // this.localPeerManager.releaseBitmapLock();
+            this.onConnected();
 
             // while (super.state.isConnectionActive()) {}
 
@@ -107,26 +153,22 @@ public class PeerConnectionManager extends PeerConnection {
             while (super.state.isConnectionActive()) {
                 
                 /*
-                 * this is synchronized to avoid a deadlock where where the if evals to true and we start to wait, 
-                 * but then before we wait, a new message/packet arives and notifies, but we havent wait()ed yet, so the notify is lost
+                 * this is locked to avoid a deadlock where where the if evals to true and we start to wait, 
+                 * but then before we wait, a new message/packet arives and signals, but we havent await()ed yet, so the signal is lost
                  */
-                synchronized (this)
+                this.queueLock.lock();
+                try
                 {
                     if(this.incomingControlMessageQueue.isEmpty() && this.incomingPacketQueue.isEmpty())
                     {
-                        wait();
+                        this.workAvailable.await();
                     }
                 }
-                if(!(this.incomingControlMessageQueue.isEmpty()))
-                {
-                    HandleControlMessage(this.incomingControlMessageQueue.take());
-                } 
-                else if (!(this.incomingPacketQueue.isEmpty()))
+                finally
                 {
-                    Packet incomingPacket = this.incomingPacketQueue.take();
-                    this.handler.handle(incomingPacket);
+                    this.queueLock.unlock();
                 }
-                else
+                if (!this.processNext())
                 {
                     System.err.println(
                             "It should be impossible to get here without having a message or packet to process");
@@ -144,6 +186,35 @@ public class PeerConnectionManager extends PeerConnection {
     }
 
 
+    /**
+     * Processes the queued packets and control messages, with the selector connection engine. Runs on the
+     * connection's I/O loop, see SelectorConnection#scheduleProcessing.
+     */
+    void processQueues() {
+        if (!this.handshakeAccepted) {
+            Packet receivedPacket = this.incomingPacketQueue.poll();
+
+            if (receivedPacket == null || !this.acceptHandshake(receivedPacket)) {
+                return;
+            }
+
+            this.handshakeAccepted = true;
+            this.onConnected();
+        }
+
+        while (super.state.isConnectionActive() && this.processNext()) {
+            // Control messages first, then packets, same as the manager thread
+        }
+    }
+
+    /**
+     * Queues the handshake packet, which is the first packet to send
+     */
+    void startHandshake() {
+        this.outgoingPacketQueue.add(new HandshakePacket(super.localPeerManager.getLocalPeerId()));
+        this.scheduleWrite();
+    }
+
     /**
      * Prepares a packet to be sent
      *
@@ -152,11 +223,113 @@ public class PeerConnectionManager extends PeerConnection {
      */
     public void preparePacket(Packet packet) throws InterruptedException {
         this.outgoingPacketQueue.put(packet);
+        this.scheduleWrite();
+    }
+
+
+    /**
+     * Drops a Piece packet that is queued and wasn't sent yet, i.e. when the remote peer cancelled its request
+     *
+     * @param pieceIndex    Index of the piece
+     * @param blockOffset   Offset of the block, -1 for a Piece packet holding the whole piece
+     * @return              Whether a queued Piece packet was dropped
+     */
+    public boolean removeQueuedPiece(int pieceIndex, int blockOffset) {
+        return this.outgoingPacketQueue.removeIf(packet -> packet.getType() == PacketType.PIECE &&
+                ((PiecePacket) packet).getPieceIndex() == pieceIndex &&
+                ((PiecePacket) packet).getBlockOffset() == blockOffset);
+    }
+
+
+    /**
+     * Validates the first received packet, which must be the remote peer's handshake. The connection is terminated
+     * if it isn't a valid handshake.
+     *
+     * @param receivedPacket   First received packet
+     * @return                 Whether the handshake was accepted
+     */
+    private boolean acceptHandshake(Packet receivedPacket) {
+        if(receivedPacket.getType() != PacketType.HANDSHAKE) {
+            System.err.println("An error occurred when establishing connection with remote peer: " +
+                    "FIRST_PACKET_NOT_HANDSHAKE");
+
+            this.terminate();
+            return false;
+        }
+
+        HandshakePacket handshake = (HandshakePacket) receivedPacket;
+
+        if(!handshake.isValid()) {
+            System.err.println("An error occurred when establishing connection with remote peer: " +
+                    "INVALID_HANDSHAKE");
+
+            this.terminate();
+            return false;
+        }
+
+        super.state.setRemotePeerId(handshake.getPeerId());
+        Logger.print(Tag.PEER_CONNECTION_MANAGER, "Handshake received and parsed successfully from peer " + handshake.getPeerId());
+
+        return true;
+    }
+
+    /**
+     * Logs the connection and sends the packets that follow the handshake, once the handshake is accepted
+     */
+    private void onConnected() {
+        // Log the connection according to who connected to who
+        if(this.state.isLocalConnectedToRemote()) {
+            this.localPeerManager.getLogger().log("Peer " + this.localPeerManager.getLocalPeerId() + " makes a connection to Peer " + this.state.getRemotePeerId() + ".");
+        } else {
+            this.localPeerManager.getLogger().log("Peer " + this.localPeerManager.getLocalPeerId() + " is connected from Peer " + this.state.getRemotePeerId() + ".");
+        }
+
+        // Create and send the second packet: extensions packet, if any extension is enabled, then bitfield packet
+        // this.localPeerManager.acquireBitmapLock();
+        this.handler.sendExtensions();
+        this.handler.sendBitfield();
+        // this.localPeerManager.releaseBitmapLock();
+    }
+
+    /**
+     * Handles the next control message, or the next received packet if there's no control message
+     *
+     * @return   Whether there was anything to handle
+     */
+    private boolean processNext() {
+        InternalMessage message = this.incomingControlMessageQueue.poll();
+
+        if (message != null) {
+            HandleControlMessage(message);
+            return true;
+        }
+
+        Packet incomingPacket = this.incomingPacketQueue.poll();
+
+        if (incomingPacket != null) {
+            this.handler.handle(incomingPacket);
+            return true;
+        }
+
+        return false;
     }
 
+    private void scheduleWrite() {
+        if (this.selectorConnection != null) {
+            this.selectorConnection.scheduleWrite();
+        }
+    }
+
+    private void scheduleProcessing() {
+        if (this.selectorConnection != null) {
+            this.selectorConnection.scheduleProcessing();
+        }
+    }
 
     /**
-     * Terminates a connection
+     * Terminates a connection.
+     * Packets that were already queued (i.e. the last Have packets) are sent before the connection is closed,
+     * so the remote peer still learns about every piece the local peer has.
      */
     private void terminate() {
         // Already terminated
@@ -167,15 +340,26 @@ public class PeerConnectionManager extends PeerConnection {
         Logger.print(Tag.PEER_CONNECTION_MANAGER, "Terminating the connection with peer " +
                 this.state.getRemotePeerId());
 
-        this.state.setConnectionActive(false);
+        if (this.selectorConnection != null) {
+            this.terminateSelectorConnection();
+            return;
+        }
 
         try {
+            // The unknown packet marks the end of the outgoing queue, after which the sender stops
+            this.outgoingPacketQueue.add(new UnknownPacket());
+            this.sender.joinThread(0);
+
+            this.state.setConnectionActive(false);
+
+            // The remote peer's pieces are no longer available, and the pieces requested from it won't be received
+            this.localPeerManager.removeRemotePieces(this.state.getPieces());
+            this.handler.releaseOutstandingRequests();
+
             this.connection.close();
             this.incomingPacketQueue.add(new UnknownPacket());
-            this.outgoingPacketQueue.add(new UnknownPacket());
 
-            this.listener.join();
-            this.sender.join();
+            this.listener.joinThread(0);
             //Logger.print(Tag.EXITING, String.format("PeerManager %d, Listener killed: %b, Sender killed: %b", this.state.getRemotePeerId(), !listener.isAlive(), !sender.isAlive()));
         } catch (IOException exception) {
             exception.printStackTrace();
@@ -187,27 +371,50 @@ public class PeerConnectionManager extends PeerConnection {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Terminates a connection of the selector connection engine. Nothing is handled anymore once this returns, and
+     * the connection is closed on its I/O loop once the packets queued so far are written.
+     */
+    private void terminateSelectorConnection() {
+        // The unknown packet marks the end of the outgoing queue, packets queued after it are dropped
+        this.outgoingPacketQueue.add(new UnknownPacket());
+
+        this.state.setConnectionActive(false);
+
+        // The remote peer's pieces are no longer available, and the pieces requested from it won't be received
+        this.localPeerManager.removeRemotePieces(this.state.getPieces());
+        this.handler.releaseOutstandingRequests();
+
+        this.selectorConnection.closeAfterWriting(this.closed::countDown);
+    }
     
     // used by other threads to send control messages to this thread
-    public synchronized void SendControlMessage(InternalMessage message) 
+    public void SendControlMessage(InternalMessage message) 
     {
+        this.queueLock.lock();
         try {
             this.incomingControlMessageQueue.put(message);
-            notifyAll();
+            this.workAvailable.signalAll();
         } catch (InterruptedException e) {
             System.err.println(
                     "An error occured while trying to send a control message to the PeerConnectionManager for peer "
                             + this.state.getRemotePeerId());
             throw new RuntimeException(e);
+        } finally {
+            this.queueLock.unlock();
         }
+
+        this.scheduleProcessing();
     }
     
     // used by the listener thread to send packets it to this manager thread 
-    public synchronized void SendRecievedPacket(Packet packet)
+    public void SendRecievedPacket(Packet packet)
     {
+        this.queueLock.lock();
         try {
             this.incomingPacketQueue.put(packet);
-            notifyAll();
+            this.workAvailable.signalAll();
         }
         catch (InterruptedException e)
         {
@@ -215,6 +422,12 @@ public class PeerConnectionManager extends PeerConnection {
             e.printStackTrace(System.err);
             throw new RuntimeException(e);
         }
+        finally
+        {
+            this.queueLock.unlock();
+        }
+
+        this.scheduleProcessing();
     }
 
     private void HandleControlMessage(InternalMessage message) throws UnsupportedOperationException
@@ -224,7 +437,28 @@ public class PeerConnectionManager extends PeerConnection {
                 terminate();
                 break;
             case NEW_LOCAL_PIECE:
-                this.handler.sendHave(((NewLocalPeiceIntMes) message).GetPieceIndex());
+                int pieceIndex = ((NewLocalPeiceIntMes) message).GetPieceIndex();
+                this.handler.sendHave(pieceIndex);
+                // The local peer no longer needs the piece from the remote peer
+                this.state.removeWantedPiece(pieceIndex);
+                this.handler.cancelRequest(pieceIndex, -1);
+                this.handler.SetInterestAndRequest();
+                break;
+            case CANCEL_REQUEST:
+                // Another connection received a piece (or a block) this connection requested in endgame mode
+                this.handler.cancelRequest(((CancelRequestIntMes) message).GetPieceIndex(),
+                        ((CancelRequestIntMes) message).GetBlockIndex());
+                this.handler.SetInterestAndRequest();
+                break;
+            case CHECK_TIMEOUTS:
+                this.handler.checkRequestTimeouts();
+                break;
+            case PRIORITY_CHANGED:
+                // Pieces were skipped or wanted again, which changes the pieces wanted from the remote peer
+                this.handler.updateWantedPieces();
+                break;
+            case PIECE_RELEASED:
+                // A piece can be requested again, so this connection might want to request it
                 this.handler.SetInterestAndRequest();
                 break;
             case UNCHOKE_THREAD:
@@ -250,6 +484,6 @@ public class PeerConnectionManager extends PeerConnection {
     public String dumpState()
     {
         Logger.print(Tag.DEBUG, "Dumping state for peer " + this.state.getRemotePeerId());
-        return String.format("Peer Connection %d%nlocalInterested: %b%nlocalRequested: %b%nlocalRequestedID: %d%nshouldBeInterested: %b%nLocalChoked: %b%nremotechoked%b%n", this.state.getRemotePeerId(), this.state.isLocalInterestedIn(), this.state.getPieceRequested(), this.state.getPieceRequestedID(), this.handler.hasInterest(), this.state.isLocalChoked(), this.state.isRemoteChoked());
+        return String.format("Peer Connection %d%nlocalInterested: %b%nlocalRequested: %d%nlocalRequestedIDs: %s%nrequestWindow: %s%nslow: %b%nshouldBeInterested: %b%nLocalChoked: %b%nremotechoked%b%n", this.state.getRemotePeerId(), this.state.isLocalInterestedIn(), this.state.getOutstandingRequestsCount(), this.state.getOutstandingRequests(), this.state.getRequestWindow(), this.state.isSlow(), this.handler.hasInterest(), this.state.isLocalChoked(), this.state.isRemoteChoked());
     }
 }
@@ -3,6 +3,9 @@ package project.connection;
 import project.LocalPeerManager;
 import project.exceptions.NetworkException;
 import project.message.packet.Packet;
+import project.message.packet.PacketType;
+import project.message.packet.packets.PiecePacket;
+import project.storage.PieceCache;
 import project.utils.Logger;
 import project.utils.Tag;
 
@@ -10,13 +13,36 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 public class PeerConnectionSender extends PeerConnection {
 
+    /*
+     * Sends the queued packets in batches: the packets queued by the time the sender gets to the queue are encoded
+     * into a single reusable buffer, which is written once for the whole batch. A burst of small packets (i.e. the
+     * Have packets announced after every commit) costs a single write, and usually goes out in a single segment.
+     * A batch stops before the first Piece packet, which stays in the queue until the sender gets to it, so a Cancel
+     * packet can still drop it (see PeerConnectionManager#removeQueuedPiece).
+     * The content of a Piece packet isn't copied into the buffer, it's written right after the buffer, from the piece
+     * cache (with a gathering write) or from the target file, see #encodeMessage.
+     */
+
+    private static final int BATCH_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BATCH_PACKETS = 256;
+
     private final BlockingQueue<Packet> messageQueue;
 
+    // Packets of the current batch, and their encoding. The buffer grows for packets that don't fit in it
+    private final List<Packet> batch;
+    private ByteBuffer batchBuffer;
+
     private OutputStream out;
+    // Null if the socket isn't backed by a channel, in which case pieces are sent through the output stream
+    private SocketChannel channel;
 
     private final LocalPeerManager localPeerManager;
 
@@ -26,27 +52,32 @@ public class PeerConnectionSender extends PeerConnection {
 
         this.messageQueue = outgoingMessageQueue;
         this.localPeerManager = localPeerManager;
+
+        this.batch = new ArrayList<>(MAX_BATCH_PACKETS);
+        this.batchBuffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
     }
 
     public void run() {
         try {
             this.out = this.connection.getOutputStream();
+            this.channel = this.connection.getChannel();
 
             // Send the first outgoing message (handshake)
-            Packet packet = this.messageQueue.take();
-            sendMessage(packet);
+            this.batch.add(this.messageQueue.take());
+            this.sendBatch();
 
             // Wait for the handshake to be finished
             this.state.waitForHandshake();
             this.state.unlockHandshake();
 
-            // Send the second outgoing message (bitfield)
-            packet = this.messageQueue.take();
-            sendMessage(packet);
-
-            // Start sending outgoing messages until the connection is closed
+            // Start sending outgoing messages until the connection is closed, or until reaching the unknown packet
+            // that marks the end of the outgoing queue
             while (super.state.isConnectionActive()) {
-                this.sendMessage(this.messageQueue.take());
+                this.takeBatch();
+
+                if (!this.sendBatch()) {
+                    break;
+                }
             }
         } catch (IOException | InterruptedException exception) {
             System.err.println("An error occurred when sending outgoing packets with peer " +
@@ -65,21 +96,59 @@ public class PeerConnectionSender extends PeerConnection {
         }
     }
 
-    private void sendMessage(Packet message) {
-        if (!this.state.isConnectionActive()) {
+    /**
+     * Takes the next batch of packets from the queue, waiting for a packet if the queue is empty. The batch holds
+     * either a single Piece packet, or the packets before the next Piece packet.
+     *
+     * @throws InterruptedException   Throws an InterruptedException if interrupted while waiting for a packet
+     */
+    private void takeBatch() throws InterruptedException {
+        Packet packet = this.messageQueue.take();
+        this.batch.add(packet);
+
+        if (packet.getType() == PacketType.PIECE) {
             return;
         }
 
+        // The sender is the only thread taking packets from the queue, and only Piece packets are ever removed by
+        // other threads, so a packet that isn't a Piece packet is still at the head of the queue once peeked
+        while (this.batch.size() < MAX_BATCH_PACKETS) {
+            packet = this.messageQueue.peek();
+
+            if (packet == null || packet.getType() == PacketType.PIECE) {
+                return;
+            }
+
+            this.batch.add(this.messageQueue.poll());
+        }
+    }
+
+    /**
+     * Sends the packets of the current batch, and clears the batch
+     *
+     * @return   Whether to keep sending, i.e. the batch didn't reach the unknown packet marking the end of the queue,
+     *           and the connection is still active
+     */
+    private boolean sendBatch() {
+        boolean stop = false;
+
         try {
-            Logger.print(Tag.SENDER, "Attempting to send a message of type " + message.getTypeString() +
-                    " to peer " + this.state.getRemotePeerId() + ". Data: " + message.dataString());
-            byte[] messageBytes = message.build();
-            this.out.write(messageBytes);
-            this.out.flush();
+            for (Packet message : this.batch) {
+                if (message.getType() == PacketType.UNKNOWN) {
+                    stop = true;
+                    break;
+                }
 
-        } catch (NetworkException exception) {
-            System.err.println("An error occurred when building a message of type " + message.getTypeString() +
-                    " to send to peer " + this.state.getRemotePeerId());
+                // The rest of the batch is dropped, and the sender stops
+                if (!this.state.isConnectionActive()) {
+                    stop = true;
+                    break;
+                }
+
+                this.encodeMessage(message);
+            }
+
+            this.flushBatch();
         } catch (IOException exception) {
             // if we get to an error here, its because the remote connection closed, so we probably lost a have message somewhere, and we should probably close too
             this.localPeerManager.dumpFile();
@@ -92,6 +161,99 @@ public class PeerConnectionSender extends PeerConnection {
             //System.err.println(exception);
             //exception.printStackTrace();
         }
+
+        this.batch.clear();
+
+        return !stop;
+    }
+
+    /**
+     * Encodes a packet into the batch buffer. The content of a Piece packet is written right away instead, along
+     * with the rest of the batch buffer.
+     *
+     * @param message        Packet to encode
+     * @throws IOException   Throws an IOException if writing to the socket failed
+     */
+    private void encodeMessage(Packet message) throws IOException {
+        try {
+            Logger.print(Tag.SENDER, "Attempting to send a message of type " + message.getTypeString() +
+                    " to peer " + this.state.getRemotePeerId() + ". Data: " + message.dataString());
+
+            // Piece packets are sent without copying the piece content: the header goes into the batch buffer,
+            // and the content is written from the piece cache, or transferred from the target file to the socket
+            if (message.getType() == PacketType.PIECE && this.channel != null) {
+                PiecePacket piecePacket = (PiecePacket) message;
+                PieceCache pieceCache = this.localPeerManager.getPieceCache();
+
+                this.appendToBatch(piecePacket.buildHeader());
+
+                // The packet's content is a view of the piece (or of one of its blocks), so its length tells how
+                // much of the piece to send
+                int offset = piecePacket.isBlock() ? piecePacket.getBlockOffset() : 0;
+                int length = piecePacket.getPieceContent().remaining();
+
+                // Pieces too big for the cache are transferred from the target file as well
+                ByteBuffer content = pieceCache == null ? null : pieceCache.getPiece(piecePacket.getPieceIndex());
+
+                if (content != null) {
+                    content.position(offset).limit(offset + length);
+
+                    // The batch so far and the content go out in a single gathering write
+                    ByteBuffer[] buffers = { this.batchBuffer.flip(), content };
+
+                    while (content.hasRemaining()) {
+                        this.channel.write(buffers);
+                    }
+
+                    this.batchBuffer.clear();
+                } else {
+                    this.flushBatch();
+                    this.localPeerManager.getStorage().transferBlock(piecePacket.getPieceIndex(), offset, length,
+                            this.channel);
+                }
+            } else {
+                this.appendToBatch(message.build());
+            }
+        } catch (NetworkException exception) {
+            System.err.println("An error occurred when building a message of type " + message.getTypeString() +
+                    " to send to peer " + this.state.getRemotePeerId());
+        }
+    }
+
+    private void appendToBatch(byte[] bytes) throws IOException {
+        if (this.batchBuffer.remaining() < bytes.length) {
+            this.flushBatch();
+
+            if (this.batchBuffer.capacity() < bytes.length) {
+                this.batchBuffer = ByteBuffer.allocate(Math.max(bytes.length, 2 * this.batchBuffer.capacity()));
+            }
+        }
+
+        this.batchBuffer.put(bytes);
+    }
+
+    /**
+     * Writes out the batch buffer, and clears it
+     *
+     * @throws IOException   Throws an IOException if writing to the socket failed
+     */
+    private void flushBatch() throws IOException {
+        if (this.batchBuffer.position() == 0) {
+            return;
+        }
+
+        this.batchBuffer.flip();
+
+        if (this.channel != null) {
+            while (this.batchBuffer.hasRemaining()) {
+                this.channel.write(this.batchBuffer);
+            }
+        } else {
+            this.out.write(this.batchBuffer.array(), 0, this.batchBuffer.limit());
+            this.out.flush();
+        }
+
+        this.batchBuffer.clear();
     }
     
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
@@ -0,0 +1,165 @@
+package project.connection;
+
+import project.Configuration;
+
+public class RequestWindow {
+
+    /*
+     * Sizes the number of outstanding requests of a connection from the bandwidth-delay product of its link.
+     * Two things are measured as pieces come in:
+     * - The round trip time, as the minimum request->piece latency over the last RTT_FILTER_SAMPLES pieces. Latencies
+     *   of pipelined requests include the time spent queued behind earlier pieces, so the minimum is the closest to
+     *   the actual link delay.
+     * - The delivery rate, as bytes received per second over intervals of at least one round trip, smoothed with an
+     *   exponentially weighted moving average.
+     * The window is GAIN times the number of requests that fit in the bandwidth-delay product, so a link that isn't
+     * saturated yet keeps growing the window until the delivery rate stops growing. It's always kept between the
+     * configured minimum and maximum depths.
+     * A request is either a whole piece or a single block of it (in block mode), so the size of a request is taken
+     * from the received data rather than from the configuration.
+     * Only accessed by the connection's manager thread.
+     */
+
+    private static final double GAIN = 2.0;
+    private static final double BANDWIDTH_SMOOTHING = 0.25;
+    private static final int RTT_FILTER_SAMPLES = 32;
+    private static final long MIN_SAMPLE_INTERVAL = 20_000_000L; // 20ms in nanoseconds
+
+    private final int minDepth;
+    private final int maxDepth;
+
+    private int depth;
+
+    // Size of the biggest piece (or block) received, which is the size of a full request
+    private int requestSize;
+
+    // Round trip time in nanoseconds, -1 until the first piece is received
+    private long rtt;
+    private long candidateRtt;
+    private int rttSamples;
+
+    // Delivery rate in bytes per second, -1 until the first interval is over
+    private double bandwidth;
+    private long intervalStart;
+    private long intervalBytes;
+
+    public RequestWindow(Configuration config) {
+        this.minDepth = config.getMinRequestPipelineDepth();
+        this.maxDepth = config.getMaxRequestPipelineDepth();
+
+        this.depth = config.getRequestPipelineDepth();
+        this.requestSize = 0;
+
+        this.rtt = -1;
+        this.candidateRtt = Long.MAX_VALUE;
+        this.rttSamples = 0;
+
+        this.bandwidth = -1;
+        this.intervalStart = -1;
+        this.intervalBytes = 0;
+    }
+
+
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Returns the measured round trip time
+     *
+     * @return   Round trip time in nanoseconds, -1 if no piece was received yet
+     */
+    public long getRtt() {
+        return this.rtt;
+    }
+
+    /**
+     * Returns the measured delivery rate
+     *
+     * @return   Delivery rate in bytes per second, -1 if it wasn't measured yet
+     */
+    public double getBandwidth() {
+        return this.bandwidth;
+    }
+
+    /**
+     * Called when a request is sent. If no other request is outstanding, the connection was idle (i.e. choked or not
+     * interested) and the delivery rate measurement starts over from now.
+     *
+     * @param outstandingRequests   Number of requests that were outstanding before this one
+     */
+    public void onRequestSent(int outstandingRequests) {
+        if (outstandingRequests == 0) {
+            this.intervalStart = System.nanoTime();
+            this.intervalBytes = 0;
+        }
+    }
+
+    /**
+     * Called when a requested piece (or block) is received. Updates the measurements, and resizes the window.
+     *
+     * @param sentTime      When the piece was requested (System#nanoTime)
+     * @param pieceLength   Number of bytes received
+     */
+    public void onPieceReceived(long sentTime, int pieceLength) {
+        long now = System.nanoTime();
+
+        this.requestSize = Math.max(this.requestSize, pieceLength);
+        this.sampleRtt(now - sentTime);
+        this.sampleBandwidth(now, pieceLength);
+
+        if (this.rtt > 0 && this.bandwidth > 0) {
+            double bandwidthDelayProduct = this.bandwidth * this.rtt / 1_000_000_000.0;
+            int depth = (int) Math.ceil(GAIN * bandwidthDelayProduct / this.requestSize);
+
+            this.depth = Math.max(this.minDepth, Math.min(this.maxDepth, depth));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "depth " + this.depth + ", rtt " + (this.rtt < 0 ? "-" : (this.rtt / 1_000_000.0) + "ms") +
+                ", bandwidth " + (this.bandwidth < 0 ? "-" : (long) this.bandwidth + "B/s");
+    }
+
+
+    private void sampleRtt(long latency) {
+        this.candidateRtt = Math.min(this.candidateRtt, latency);
+
+        // The first sample is used right away, so the window can adapt before a whole filter period passes
+        if (this.rtt < 0 || latency < this.rtt) {
+            this.rtt = latency;
+        }
+
+        // At the end of every filter period, the minimum of the period replaces the current round trip time, so a
+        // link that got slower is noticed
+        if (++this.rttSamples == RTT_FILTER_SAMPLES) {
+            this.rtt = this.candidateRtt;
+            this.candidateRtt = Long.MAX_VALUE;
+            this.rttSamples = 0;
+        }
+    }
+
+    private void sampleBandwidth(long now, int pieceLength) {
+        if (this.intervalStart < 0) {
+            this.intervalStart = now;
+            this.intervalBytes = 0;
+            return;
+        }
+
+        this.intervalBytes += pieceLength;
+
+        long elapsed = now - this.intervalStart;
+        if (elapsed < Math.max(MIN_SAMPLE_INTERVAL, this.rtt)) {
+            return;
+        }
+
+        double sample = this.intervalBytes * 1_000_000_000.0 / elapsed;
+        this.bandwidth = this.bandwidth < 0
+                ? sample
+                : BANDWIDTH_SMOOTHING * sample + (1 - BANDWIDTH_SMOOTHING) * this.bandwidth;
+
+        this.intervalStart = now;
+        this.intervalBytes = 0;
+    }
+}
@@ -0,0 +1,441 @@
+package project.connection;
+
+import project.LocalPeerManager;
+import project.exceptions.NetworkException;
+import project.message.packet.Packet;
+import project.message.packet.PacketType;
+import project.message.packet.packets.ExtensionsPacket;
+import project.message.packet.packets.HandshakePacket;
+import project.message.packet.packets.PiecePacket;
+import project.storage.BufferPool;
+import project.utils.Logger;
+import project.utils.Tag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SelectorConnection {
+
+    /*
+     * A connection of the selector engine, see SelectorEngine. It does the work of PeerConnectionListener and
+     * PeerConnectionSender with a non-blocking socket, on its I/O loop:
+     * - Incoming bytes are read into a reusable buffer and split into packets. Like the listener, the content of a
+     *   Piece packet is read straight into a pooled buffer, and a big piece goes from the socket to that buffer
+     *   without going through the read buffer.
+     * - Outgoing packets are taken from the manager's outgoing queue and written as far as the socket takes them.
+     *   The content of a Piece packet is written from its view of the mapped target file, with a gathering write
+     *   along with the packet's header.
+     * The manager's queues are processed on the loop as well, once per batch of received packets or control
+     * messages, see PeerConnectionManager#processQueues.
+     */
+
+    private static final int LENGTH_FIELD_LENGTH = 4;
+    private static final int TYPE_FIELD_LENGTH = 1;
+    private static final int PIECE_INDEX_FIELD_LENGTH = 4;
+    private static final int BLOCK_OFFSET_FIELD_LENGTH = 4;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Number of reads in a row from a single connection, before the loop moves on to the other connections
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private final PeerConnectionManager manager;
+    private final LocalPeerManager localPeerManager;
+    private final ConnectionState state;
+    private final BlockingQueue<Packet> outgoingPacketQueue;
+
+    private final SocketChannel channel;
+    private final SelectorEngine.IoLoop loop;
+    private SelectionKey key;
+
+    // Bytes read and not decoded yet, kept ready to be written into (i.e. in between #decode calls)
+    private ByteBuffer readBuffer;
+    private boolean handshakeReceived;
+
+    // Piece packet whose content is being read, null if there's none
+    private PiecePacket incomingPiece;
+    private BufferPool incomingPiecePool;
+
+    // Packet being written, null if there's none
+    private Packet outgoingPacket;
+    private ByteBuffer[] outgoingBuffers;
+    // Set once the marker at the end of the outgoing queue is reached, see PeerConnectionManager#terminate
+    private Runnable onWritten;
+
+    // Set while processing the manager's queues is scheduled on the loop and didn't start yet
+    private final AtomicBoolean processingScheduled;
+
+    SelectorConnection(PeerConnectionManager manager, SocketChannel channel, SelectorEngine.IoLoop loop) {
+        this.manager = manager;
+        this.localPeerManager = manager.getLocalPeerManager();
+        this.state = manager.getConnectionState();
+        this.outgoingPacketQueue = manager.getOutgoingPacketQueue();
+
+        this.channel = channel;
+        this.loop = loop;
+
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.handshakeReceived = false;
+
+        this.processingScheduled = new AtomicBoolean(false);
+    }
+
+
+    /**
+     * Registers the socket with the loop's selector and starts the handshake
+     */
+    public void open() {
+        this.loop.execute(this::register);
+    }
+
+    /**
+     * Processes the manager's queues on the connection's I/O loop. Any number of calls before the loop gets to it
+     * result in a single run.
+     */
+    public void scheduleProcessing() {
+        if (this.processingScheduled.compareAndSet(false, true)) {
+            this.loop.execute(() -> {
+                // Cleared first, so anything queued while processing schedules another run
+                this.processingScheduled.set(false);
+                this.manager.processQueues();
+            });
+        }
+    }
+
+    /**
+     * Lets the connection know packets were added to the outgoing queue
+     */
+    public void scheduleWrite() {
+        if (Thread.currentThread() == this.loop) {
+            this.enableWrite();
+        } else {
+            this.loop.execute(this::enableWrite);
+        }
+    }
+
+    /**
+     * Closes the connection once all packets queued so far are written
+     *
+     * @param onClosed   Called on the loop once the connection is closed
+     */
+    public void closeAfterWriting(Runnable onClosed) {
+        this.loop.execute(() -> {
+            this.onWritten = onClosed;
+            this.enableWrite();
+        });
+    }
+
+
+    private void register() {
+        try {
+            this.channel.configureBlocking(false);
+            this.key = this.loop.register(this.channel, this);
+        } catch (IOException exception) {
+            System.err.println("An error occurred when registering the connection with peer " +
+                    this.state.getRemotePeerId() + " with " + this.loop.getName());
+            return;
+        }
+
+        this.manager.startHandshake();
+    }
+
+    void onReadable() {
+        try {
+            for (int reads = 0; reads < MAX_READS_PER_EVENT; reads++) {
+                // The rest of a piece's content goes straight into its buffer
+                if (this.incomingPiece != null) {
+                    if (this.channel.read(this.incomingPiece.getPieceContent()) < 0) {
+                        this.onEndOfStream();
+                        return;
+                    }
+
+                    if (this.incomingPiece.getPieceContent().hasRemaining()) {
+                        return;
+                    }
+
+                    this.deliverPiece();
+                }
+
+                int read = this.channel.read(this.readBuffer);
+
+                if (read < 0) {
+                    this.onEndOfStream();
+                    return;
+                }
+
+                this.readBuffer.flip();
+                this.decode();
+                this.readBuffer.compact();
+
+                if (read == 0) {
+                    return;
+                }
+            }
+        } catch (IOException exception) {
+            // The remote peer is gone, like with the listener nothing more is read
+            Logger.print(Tag.LISTENER, "An error occurred when reading from peer " + this.state.getRemotePeerId() +
+                    ": " + exception);
+            this.onEndOfStream();
+        }
+    }
+
+    void onWritable() {
+        try {
+            while (true) {
+                if (this.outgoingPacket == null && !this.nextOutgoingPacket()) {
+                    return;
+                }
+
+                this.channel.write(this.outgoingBuffers);
+
+                // The socket's buffer is full, the rest is written once it has room again
+                if (this.outgoingBuffers[this.outgoingBuffers.length - 1].hasRemaining()) {
+                    return;
+                }
+
+                Logger.print(Tag.SENDER, "Sent a message of type " + this.outgoingPacket.getTypeString() +
+                        " to peer " + this.state.getRemotePeerId());
+
+                this.outgoingPacket = null;
+                this.outgoingBuffers = null;
+            }
+        } catch (IOException exception) {
+            // Same as the sender: the remote connection closed, so a Have packet was probably lost, and the local
+            // peer closes too
+            this.localPeerManager.dumpFile();
+            this.localPeerManager.getLogger().close();
+            System.exit(0);
+        }
+    }
+
+
+    /**
+     * Takes the next packet to write from the outgoing queue, and encodes it
+     *
+     * @return   Whether there's a packet to write. Otherwise the connection stops waiting for room to write
+     */
+    private boolean nextOutgoingPacket() {
+        while (true) {
+            Packet packet = this.outgoingPacketQueue.poll();
+
+            if (packet == null) {
+                // Closing after the last queued packet, see PeerConnectionManager#terminate
+                if (this.onWritten != null) {
+                    this.close();
+                    return false;
+                }
+
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                return false;
+            }
+
+            try {
+                // The unknown packet marks the end of the outgoing queue, and packets queued after it are dropped
+                if (packet.getType() == PacketType.UNKNOWN) {
+                    this.outgoingPacketQueue.clear();
+                    continue;
+                }
+
+                Logger.print(Tag.SENDER, "Attempting to send a message of type " + packet.getTypeString() +
+                        " to peer " + this.state.getRemotePeerId() + ". Data: " + packet.dataString());
+
+                // The content of a Piece packet is a view of the piece (or of one of its blocks) in the mapped target
+                // file, so it's written without copying it into the message
+                if (packet.getType() == PacketType.PIECE) {
+                    PiecePacket piecePacket = (PiecePacket) packet;
+
+                    this.outgoingBuffers = new ByteBuffer[] {
+                            ByteBuffer.wrap(piecePacket.buildHeader()),
+                            piecePacket.getPieceContent().duplicate()
+                    };
+                } else {
+                    this.outgoingBuffers = new ByteBuffer[] { ByteBuffer.wrap(packet.build()) };
+                }
+
+                this.outgoingPacket = packet;
+
+                return true;
+            } catch (NetworkException exception) {
+                System.err.println("An error occurred when building a message of type " + packet.getTypeString() +
+                        " to send to peer " + this.state.getRemotePeerId());
+            }
+        }
+    }
+
+    private void enableWrite() {
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Splits the read bytes into packets, and hands the complete ones to the manager. Bytes of an incomplete packet
+     * are left in the read buffer. The read buffer is ready to be read from when called.
+     */
+    private void decode() {
+        while (this.incomingPiece == null) {
+            if (!this.handshakeReceived) {
+                if (this.readBuffer.remaining() < HandshakePacket.HANDSHAKE_LENGTH) {
+                    return;
+                }
+
+                byte[] message = new byte[HandshakePacket.HANDSHAKE_LENGTH];
+                this.readBuffer.get(message);
+
+                this.handshakeReceived = true;
+                this.deliver(new HandshakePacket(message));
+                continue;
+            }
+
+            if (this.readBuffer.remaining() < LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH) {
+                return;
+            }
+
+            int start = this.readBuffer.position();
+            int lengthHeader = this.readBuffer.getInt(start);
+            byte type = this.readBuffer.get(start + LENGTH_FIELD_LENGTH);
+
+            // Same as the listener, the length and type of an empty packet are skipped
+            if (lengthHeader < 1) {
+                this.readBuffer.position(start + LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH);
+                continue;
+            }
+
+            // In block mode, Piece packets carry the offset of the block as well
+            int pieceFieldsLength = PIECE_INDEX_FIELD_LENGTH +
+                    (this.state.isBlockMode() ? BLOCK_OFFSET_FIELD_LENGTH : 0);
+
+            if (type == PacketType.PIECE.getTypeId() && lengthHeader >= TYPE_FIELD_LENGTH + pieceFieldsLength) {
+                if (this.readBuffer.remaining() < LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + pieceFieldsLength) {
+                    return;
+                }
+
+                this.readBuffer.position(start + LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH);
+                this.startPiece(lengthHeader, pieceFieldsLength);
+                continue;
+            }
+
+            // A packet bigger than the read buffer gets a bigger buffer, so it can be read whole
+            if (LENGTH_FIELD_LENGTH + lengthHeader > this.readBuffer.capacity()) {
+                this.readBuffer = ByteBuffer.allocate(LENGTH_FIELD_LENGTH + lengthHeader).put(this.readBuffer).flip();
+                return;
+            }
+
+            if (this.readBuffer.remaining() < LENGTH_FIELD_LENGTH + lengthHeader) {
+                return;
+            }
+
+            byte[] payload = new byte[lengthHeader];
+            this.readBuffer.position(start + LENGTH_FIELD_LENGTH);
+            this.readBuffer.get(payload);
+
+            Packet packet = Packet.PacketFromBytes(payload);
+
+            // The remote peer's extensions change how the next packets are read, see PeerConnectionListener
+            if (packet.getType() == PacketType.EXTENSIONS) {
+                this.state.setBlockMode(this.localPeerManager.getConfig().getBlockSize() > 0 &&
+                        ((ExtensionsPacket) packet).supports(ExtensionsPacket.BLOCKS));
+            }
+
+            Logger.print(Tag.LISTENER, "Parsed packet of type " + packet.getTypeString() + " from peer " +
+                    this.state.getRemotePeerId() + ". Data: " + packet.dataString());
+
+            this.deliver(packet);
+        }
+    }
+
+    /**
+     * Starts reading the content of a Piece packet, after its length, type, piece index and block offset are read.
+     * The content goes into a pooled buffer, the same way as with PeerConnectionListener#listenToPiece.
+     *
+     * @param lengthHeader        Length header of the packet
+     * @param pieceFieldsLength   Length of the fields before the content (the piece index, and the block offset)
+     */
+    private void startPiece(int lengthHeader, int pieceFieldsLength) {
+        int pieceIndex = this.readBuffer.getInt();
+        int blockOffset = pieceFieldsLength > PIECE_INDEX_FIELD_LENGTH ? this.readBuffer.getInt() : -1;
+        int contentLength = lengthHeader - TYPE_FIELD_LENGTH - pieceFieldsLength;
+
+        this.incomingPiecePool = blockOffset == -1
+                ? this.localPeerManager.getBufferPool()
+                : this.localPeerManager.getBlockBufferPool();
+        int bufferSize = blockOffset == -1
+                ? this.localPeerManager.getConfig().getPieceSize()
+                : this.localPeerManager.getConfig().getBlockSize();
+        ByteBuffer content = contentLength <= bufferSize
+                ? this.incomingPiecePool.acquire(contentLength)
+                : ByteBuffer.allocate(contentLength);
+
+        // Whatever part of the content was already read comes from the read buffer
+        ByteBuffer available = this.readBuffer.duplicate();
+        available.limit(available.position() + Math.min(available.remaining(), contentLength));
+        content.put(available);
+        this.readBuffer.position(available.position());
+
+        this.incomingPiece = new PiecePacket();
+        this.incomingPiece.setData(pieceIndex, blockOffset, content);
+
+        if (!content.hasRemaining()) {
+            this.deliverPiece();
+        }
+    }
+
+    private void deliverPiece() {
+        PiecePacket packet = this.incomingPiece;
+        this.incomingPiece = null;
+
+        packet.getPieceContent().flip();
+
+        Logger.print(Tag.LISTENER, "Parsed packet of type " + packet.getTypeString() + " from peer " +
+                this.state.getRemotePeerId() + ". Data: " + packet.dataString());
+
+        this.deliver(packet);
+    }
+
+    private void deliver(Packet packet) {
+        this.manager.SendRecievedPacket(packet);
+    }
+
+    private void onEndOfStream() {
+        Logger.print(Tag.LISTENER, "Reached the end of the stream with peer " + this.state.getRemotePeerId());
+
+        this.state.setRemoteClosed();
+
+        if (this.incomingPiece != null) {
+            this.incomingPiecePool.release(this.incomingPiece.getPieceContent());
+            this.incomingPiece = null;
+        }
+
+        // Nothing more is read, but queued packets are still written until the connection is terminated
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void close() {
+        Logger.print(Tag.SENDER, "Closing the connection with peer " + this.state.getRemotePeerId());
+
+        if (this.key != null) {
+            this.key.cancel();
+        }
+
+        try {
+            this.channel.close();
+        } catch (IOException exception) {
+            System.err.println("An error occurred when closing the connection with peer " +
+                    this.state.getRemotePeerId());
+        }
+
+        if (this.incomingPiece != null) {
+            this.incomingPiecePool.release(this.incomingPiece.getPieceContent());
+            this.incomingPiece = null;
+        }
+
+        Runnable onClosed = this.onWritten;
+        this.onWritten = null;
+        onClosed.run();
+    }
+}
@@ -0,0 +1,136 @@
+package project.connection;
+
+import project.utils.Logger;
+import project.utils.Tag;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SelectorEngine {
+
+    /*
+     * Event loop transport for the selector connection engine (see ConnectionEngine#SELECTOR).
+     * The engine runs a fixed number of I/O loops, each a single thread multiplexing the non-blocking sockets of its
+     * connections with a selector. Connections are spread over the loops round robin, and a connection stays on its
+     * loop for its whole life, so everything about a connection (framing, decoding, writing, and handling its packets
+     * and control messages) runs on a single thread, just like on its manager thread with the threads engine.
+     * Other threads hand work to a loop as tasks, which the loop runs between selects.
+     * The number of threads is fixed whatever the number of connections, and a received packet is handled on the
+     * thread that read it instead of being handed over to another thread.
+     */
+
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop;
+
+    public SelectorEngine(int ioThreads) throws IOException {
+        this.loops = new IoLoop[ioThreads];
+        this.nextLoop = new AtomicInteger(0);
+
+        for (int i = 0; i < ioThreads; i++) {
+            this.loops[i] = new IoLoop(i);
+            this.loops[i].start();
+        }
+    }
+
+
+    /**
+     * Binds a connection to one of the I/O loops. Nothing is read or written until the connection is opened, see
+     * SelectorConnection#open.
+     *
+     * @param manager   Manager of the connection
+     * @param channel   Channel of the connection's socket
+     * @return          The connection, bound to its I/O loop
+     */
+    public SelectorConnection register(PeerConnectionManager manager, SocketChannel channel) {
+        IoLoop loop = this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+
+        return new SelectorConnection(manager, channel, loop);
+    }
+
+
+    static class IoLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+
+        IoLoop(int index) throws IOException {
+            super("IO Loop " + index);
+
+            // The loops never keep the process alive, the local peer manager decides when it's done
+            this.setDaemon(true);
+
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+        }
+
+
+        /**
+         * Runs a task on this loop. Tasks run in the order they were handed over, between selects.
+         *
+         * @param task   Task to run
+         */
+        void execute(Runnable task) {
+            this.tasks.add(task);
+
+            // The loop itself gets to its tasks right after the current select, so it doesn't need to be woken up
+            if (Thread.currentThread() != this) {
+                this.selector.wakeup();
+            }
+        }
+
+        SelectionKey register(SocketChannel channel, SelectorConnection connection) throws IOException {
+            return channel.register(this.selector, SelectionKey.OP_READ, connection);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    // Tasks handed over while the loop was busy are run right away instead of waiting for an event
+                    if (this.tasks.isEmpty()) {
+                        this.selector.select();
+                    } else {
+                        this.selector.selectNow();
+                    }
+                } catch (IOException exception) {
+                    System.err.println("An error occurred when selecting ready connections on " + this.getName());
+                    return;
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    SelectorConnection connection = (SelectorConnection) key.attachment();
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+
+                // Only the tasks queued so far are run, tasks queued by these tasks wait for the next round
+                for (int i = this.tasks.size(); i > 0; i--) {
+                    Runnable task = this.tasks.poll();
+
+                    try {
+                        task.run();
+                    } catch (RuntimeException exception) {
+                        System.err.println("An error occurred when running a task on " + this.getName());
+                        exception.printStackTrace(System.err);
+                        Logger.print(Tag.SELECTOR, "Task failed on " + this.getName() + ": " + exception);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,30 +1,38 @@
 package project.connection.piece;
 
+import java.nio.ByteBuffer;
+
 public class Piece {
 
-    private PieceStatus status;
-    private byte[] content;
+    // The status is kept in an array shared by all local pieces, see PieceStatusArray
+    private final int index;
+    private final PieceStatusArray statuses;
+
+    private volatile ByteBuffer content;
 
-    public Piece(PieceStatus status, byte[] content) {
-        this.status = status;
+    public Piece(int index, PieceStatusArray statuses, PieceStatus status, ByteBuffer content) {
+        this.index = index;
+        this.statuses = statuses;
         this.content = content;
+
+        this.statuses.set(index, status);
     }
 
 
     public PieceStatus getStatus() {
-        return status;
+        return this.statuses.get(this.index);
     }
 
     public void setStatus(PieceStatus status) {
-        this.status = status;
+        this.statuses.set(this.index, status);
     }
 
 
-    public byte[] getContent() {
+    public ByteBuffer getContent() {
         return content;
     }
 
-    public void setContent(byte[] content) {
+    public void setContent(ByteBuffer content) {
         this.content = content;
     }
 }
@@ -0,0 +1,185 @@
+package project.connection.piece;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntPredicate;
+
+public class PieceAssembly {
+
+    /*
+     * A piece being received block by block, possibly from several remote peers at the same time. Each block goes
+     * through its own small state machine, and the blocks are copied into a single piece sized buffer as they come:
+     *
+     *     FREE --claim--> REQUESTED --receive--> RECEIVED
+     *       ^                 |
+     *       +----release------+
+     *
+     * A block can be received in any state (i.e. after its request timed out), and receiving a block twice keeps the
+     * first copy. Once all blocks are received the piece is complete, and it goes through the same verification and
+     * commit path as a piece received at once.
+     * An assembly is shared by all connections, so every method is synchronized.
+     */
+
+    private static final byte FREE = 0;
+    private static final byte REQUESTED = 1;
+    private static final byte RECEIVED = 2;
+
+    private final int pieceIndex;
+    private final int blockSize;
+    private final ByteBuffer content;
+
+    private final byte[] blocks;
+    private int requestedBlocks;
+    private int receivedBlocks;
+
+    // Set once the assembly is dropped before it's complete, after which no block can be claimed or received
+    private boolean abandoned;
+
+    /**
+     * Starts assembling a piece, with all of its blocks free
+     *
+     * @param pieceIndex   Index of the piece
+     * @param blockSize    Size of every block but the last one
+     * @param content      Buffer to assemble the piece into, with its limit at the piece length
+     */
+    public PieceAssembly(int pieceIndex, int blockSize, ByteBuffer content) {
+        this.pieceIndex = pieceIndex;
+        this.blockSize = blockSize;
+        this.content = content;
+
+        this.blocks = new byte[(content.limit() + blockSize - 1) / blockSize];
+        this.requestedBlocks = 0;
+        this.receivedBlocks = 0;
+        this.abandoned = false;
+    }
+
+
+    public int getPieceIndex() {
+        return this.pieceIndex;
+    }
+
+    /**
+     * Returns the assembled piece. It's only complete once #receiveBlock reported so.
+     *
+     * @return   Buffer holding the piece, with its position at 0 and its limit at the piece length
+     */
+    public ByteBuffer getContent() {
+        return this.content;
+    }
+
+    public int getBlockCount() {
+        return this.blocks.length;
+    }
+
+    public int getBlockOffset(int block) {
+        return block * this.blockSize;
+    }
+
+    public int getBlockLength(int block) {
+        return Math.min(this.blockSize, this.content.limit() - this.getBlockOffset(block));
+    }
+
+    public synchronized int getRequestedBlocks() {
+        return this.requestedBlocks;
+    }
+
+    /**
+     * Claims the first block that is neither requested nor received
+     *
+     * @return   Claimed block, -1 if there's no such block
+     */
+    public synchronized int claimBlock() {
+        if (this.abandoned) {
+            return -1;
+        }
+
+        for (int block = 0; block < this.blocks.length; block++) {
+            if (this.blocks[block] == FREE) {
+                this.blocks[block] = REQUESTED;
+                this.requestedBlocks++;
+
+                return block;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns a block that is requested and not received yet, to be requested once more in endgame mode.
+     * The block stays claimed by the connection that requested it first.
+     *
+     * @param skip   Blocks to leave out, i.e. the ones the caller already requested
+     * @return       Block, -1 if there's no such block
+     */
+    public synchronized int findRequestedBlock(IntPredicate skip) {
+        if (this.abandoned) {
+            return -1;
+        }
+
+        for (int block = 0; block < this.blocks.length; block++) {
+            if (this.blocks[block] == REQUESTED && !skip.test(block)) {
+                return block;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Releases a claimed block, so it can be requested again. Blocks that aren't requested are ignored.
+     *
+     * @param block   Block to release
+     */
+    public synchronized void releaseBlock(int block) {
+        if (this.blocks[block] == REQUESTED) {
+            this.blocks[block] = FREE;
+            this.requestedBlocks--;
+        }
+    }
+
+    /**
+     * Copies a received block into the piece
+     *
+     * @param block   Received block
+     * @param data    Content of the block, exactly #getBlockLength bytes
+     * @return        Whether this block completed the piece. This is true for a single call only
+     */
+    public synchronized boolean receiveBlock(int block, ByteBuffer data) {
+        if (this.abandoned || this.blocks[block] == RECEIVED) {
+            return false;
+        }
+
+        ByteBuffer target = this.content.duplicate();
+        target.position(this.getBlockOffset(block));
+        target.put(data.duplicate());
+
+        if (this.blocks[block] == REQUESTED) {
+            this.requestedBlocks--;
+        }
+        this.blocks[block] = RECEIVED;
+
+        return ++this.receivedBlocks == this.blocks.length;
+    }
+
+    /**
+     * Drops the assembly if no block is requested, i.e. once no connection is working on the piece anymore.
+     * Received blocks are dropped along, and the piece has to be requested again from scratch.
+     *
+     * @return   Whether the assembly was dropped
+     */
+    public synchronized boolean abandonIfIdle() {
+        if (this.abandoned || this.requestedBlocks > 0 || this.receivedBlocks == this.blocks.length) {
+            return false;
+        }
+
+        this.abandoned = true;
+
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "piece " + this.pieceIndex + ": " + this.receivedBlocks + "/" + this.blocks.length + " blocks received, " +
+                this.requestedBlocks + " requested";
+    }
+}
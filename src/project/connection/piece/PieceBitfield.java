@@ -0,0 +1,230 @@
+package project.connection.piece;
+
+import java.util.Arrays;
+
+public class PieceBitfield {
+
+    /*
+     * Fixed size set of pieces, one bit per piece packed in 64-bit words, with a maintained cardinality so checking
+     * whether all pieces are set is O(1).
+     * The wire format is the one of the Bitfield packet: bit i of byte j is piece 8 * j + i, and trailing zero bytes
+     * are dropped (the same layout as BitSet#toByteArray and BitSet#valueOf).
+     * A bitfield is only changed by a single thread, but its cardinality can be read from any thread.
+     */
+
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+
+    private final int length;
+    private final long[] words;
+    private volatile int cardinality;
+
+    public PieceBitfield(int length) {
+        this.length = length;
+        this.words = new long[wordsFor(length)];
+        this.cardinality = 0;
+    }
+
+    private PieceBitfield(int length, long[] words) {
+        this.length = length;
+        this.words = words;
+        this.cardinality = countBits(words);
+    }
+
+
+    /**
+     * Parses a bitfield from its wire format. The bitfield holds max(numberOfPieces, highest set bit + 1) pieces.
+     *
+     * @param bytes            Array holding the bitfield
+     * @param offset           Offset of the bitfield in the array
+     * @param count            Number of bytes of the bitfield
+     * @param numberOfPieces   Number of pieces
+     * @return                 Parsed bitfield
+     */
+    public static PieceBitfield fromBytes(byte[] bytes, int offset, int count, int numberOfPieces) {
+        // Trailing zero bytes don't hold any piece
+        while (count > 0 && bytes[offset + count - 1] == 0) {
+            count--;
+        }
+
+        int highestBit = count == 0 ? 0 :
+                (count - 1) * Byte.SIZE + (Integer.SIZE - Integer.numberOfLeadingZeros(bytes[offset + count - 1] & 0xFF));
+
+        int length = Math.max(numberOfPieces, highestBit);
+        long[] words = new long[wordsFor(length)];
+
+        for (int i = 0; i < count; i++) {
+            words[i >> 3] |= (bytes[offset + i] & 0xFFL) << ((i & 7) * Byte.SIZE);
+        }
+
+        return new PieceBitfield(length, words);
+    }
+
+    /**
+     * Returns the bitfield in its wire format
+     *
+     * @return   Bytes of the bitfield, without trailing zero bytes
+     */
+    public byte[] toByteArray() {
+        int wordsInUse = this.words.length;
+        while (wordsInUse > 0 && this.words[wordsInUse - 1] == 0) {
+            wordsInUse--;
+        }
+
+        if (wordsInUse == 0) {
+            return new byte[0];
+        }
+
+        // Only the bytes of the last word up to its highest set bit are needed
+        long lastWord = this.words[wordsInUse - 1];
+        int lastWordBytes = (Long.SIZE - Long.numberOfLeadingZeros(lastWord) + Byte.SIZE - 1) / Byte.SIZE;
+
+        byte[] bytes = new byte[(wordsInUse - 1) * Long.BYTES + lastWordBytes];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (this.words[i >> 3] >>> ((i & 7) * Byte.SIZE));
+        }
+
+        return bytes;
+    }
+
+
+    public int length() {
+        return this.length;
+    }
+
+    public int cardinality() {
+        return this.cardinality;
+    }
+
+    /**
+     * Checks whether all pieces are set. An empty bitfield (i.e. one that wasn't received yet) is never complete.
+     *
+     * @return   Whether all pieces are set
+     */
+    public boolean isComplete() {
+        return this.length > 0 && this.cardinality == this.length;
+    }
+
+    public boolean get(int pieceIndex) {
+        return pieceIndex >= 0 && pieceIndex < this.length &&
+                (this.words[wordIndex(pieceIndex)] & (1L << pieceIndex)) != 0;
+    }
+
+    /**
+     * Sets a piece
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether the piece wasn't set before
+     */
+    public boolean set(int pieceIndex) {
+        checkIndex(pieceIndex);
+
+        long mask = 1L << pieceIndex;
+        int wordIndex = wordIndex(pieceIndex);
+
+        if ((this.words[wordIndex] & mask) != 0) {
+            return false;
+        }
+
+        this.words[wordIndex] |= mask;
+        this.cardinality++;
+
+        return true;
+    }
+
+    /**
+     * Clears a piece
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Whether the piece was set before
+     */
+    public boolean clear(int pieceIndex) {
+        checkIndex(pieceIndex);
+
+        long mask = 1L << pieceIndex;
+        int wordIndex = wordIndex(pieceIndex);
+
+        if ((this.words[wordIndex] & mask) == 0) {
+            return false;
+        }
+
+        this.words[wordIndex] &= ~mask;
+        this.cardinality--;
+
+        return true;
+    }
+
+    /**
+     * Returns the index of the first set piece at or after the given index
+     *
+     * @param fromIndex   Index to start from
+     * @return            Index of the set piece, -1 if there's no such piece
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex >= this.length) {
+            return -1;
+        }
+
+        int wordIndex = wordIndex(fromIndex);
+        long word = this.words[wordIndex] & (-1L << fromIndex);
+
+        while (true) {
+            if (word != 0) {
+                return wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+
+            if (++wordIndex == this.words.length) {
+                return -1;
+            }
+
+            word = this.words[wordIndex];
+        }
+    }
+
+    /**
+     * Returns the pieces set in this bitfield and not in the other one, computed word by word
+     * (i.e. the pieces a remote peer has and the local peer lacks)
+     *
+     * @param other   Bitfield of the pieces to leave out
+     * @return        New bitfield of the same length as this one
+     */
+    public PieceBitfield andNot(PieceBitfield other) {
+        long[] result = Arrays.copyOf(this.words, this.words.length);
+
+        for (int i = 0; i < Math.min(result.length, other.words.length); i++) {
+            result[i] &= ~other.words[i];
+        }
+
+        return new PieceBitfield(this.length, result);
+    }
+
+    public PieceBitfield copy() {
+        return new PieceBitfield(this.length, Arrays.copyOf(this.words, this.words.length));
+    }
+
+
+    private void checkIndex(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= this.length) {
+            throw new IndexOutOfBoundsException("Piece " + pieceIndex + " is out of a bitfield of " + this.length +
+                    " pieces");
+        }
+    }
+
+    private static int wordsFor(int length) {
+        return (int) (((long) length + Long.SIZE - 1) >> ADDRESS_BITS_PER_WORD);
+    }
+
+    private static int wordIndex(int bitIndex) {
+        return bitIndex >> ADDRESS_BITS_PER_WORD;
+    }
+
+    private static int countBits(long[] words) {
+        int count = 0;
+
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,282 @@
+package project.connection.piece;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PiecePicker {
+
+    /*
+     * Rarest first piece picker.
+     * The picker keeps the number of connected remote peers that have each piece (its availability), and keeps all
+     * the pieces the local peer still needs in a single array, sorted by availability. The array is split into
+     * buckets, one per availability value, where bucketStart[a] is the position of the first piece with an
+     * availability of a:
+     *
+     *     order:        | 7 2 | 5 0 9 | 1 |
+     *     availability:    1      2     3
+     *
+     * A change of availability only swaps the piece with the first or last piece of its bucket and moves the bucket
+     * boundary, so keeping the array sorted is O(1) per update. Picking scans the buckets from the rarest one, and
+     * stops at the first piece the remote peer has, starting from a random position in each bucket so that ties are
+     * broken randomly.
+     * Picking only reads the buckets and claims the piece with a compare-and-set, so any number of connection
+     * threads can pick at the same time. Updates change the buckets, and must not run concurrently with anything
+     * else. LocalPeerManager guards the picker with a read/write lock accordingly.
+     * While the file is streamed, pieces right after the reader's position are picked in order instead, see
+     * #pickInOrder.
+     * Every piece has a priority. Picking goes over the buckets once per priority, from the highest one, and only
+     * considers the pieces of that priority. Priorities without needed pieces are passed over, so while all pieces
+     * have the default priority it's a single pass. Pieces to skip are never picked.
+     */
+
+    private static final PiecePriority[] PRIORITIES = PiecePriority.values();
+
+    private final int[] availability;
+
+    // Needed pieces sorted by availability, and the position of each piece in it (-1 if the piece isn't needed)
+    private final int[] order;
+    private final int[] position;
+    private int size;
+
+    // bucketStart[a] is the position in order of the first piece with availability a.
+    // bucketStart[maxAvailability + 1] is always the number of needed pieces
+    private int[] bucketStart;
+    private int maxAvailability;
+
+    // Priority of every piece, shared with LocalPeerManager, and the number of needed pieces of each priority (by
+    // ordinal)
+    private final PiecePriority[] priorities;
+    private final int[] neededCount;
+
+    public PiecePicker(Piece[] localPieces, PiecePriority[] priorities) {
+        this.availability = new int[localPieces.length];
+        this.order = new int[localPieces.length];
+        this.position = new int[localPieces.length];
+        this.size = 0;
+
+        // All pieces start with an availability of 0, so they're all in the first bucket, in random order
+        for (int i = 0; i < localPieces.length; i++) {
+            if (localPieces[i].getStatus() == PieceStatus.HAVE) {
+                this.position[i] = -1;
+                continue;
+            }
+
+            // Insert the piece at the end, then swap it with a random needed piece (possibly itself)
+            this.order[this.size] = i;
+            this.position[i] = this.size;
+            this.swap(this.size, ThreadLocalRandom.current().nextInt(this.size + 1));
+            this.size++;
+        }
+
+        this.maxAvailability = 0;
+        this.bucketStart = new int[] { 0, this.size };
+
+        this.priorities = priorities;
+        this.neededCount = new int[PRIORITIES.length];
+        for (int i = 0; i < localPieces.length; i++) {
+            if (this.position[i] != -1) {
+                this.neededCount[priorities[i].ordinal()]++;
+            }
+        }
+    }
+
+
+    public int getAvailability(int pieceIndex) {
+        return this.availability[pieceIndex];
+    }
+
+    public PiecePriority getPriority(int pieceIndex) {
+        return this.priorities[pieceIndex];
+    }
+
+    /**
+     * Returns the number of pieces of a priority the local peer still needs
+     *
+     * @param priority   Priority of the pieces
+     * @return           Number of needed pieces
+     */
+    public int getNeededCount(PiecePriority priority) {
+        return this.neededCount[priority.ordinal()];
+    }
+
+    /**
+     * Changes the priority of a piece
+     *
+     * @param pieceIndex   Index of the piece
+     * @param priority     New priority
+     * @return             Previous priority
+     */
+    public PiecePriority setPriority(int pieceIndex, PiecePriority priority) {
+        PiecePriority previous = this.priorities[pieceIndex];
+
+        if (this.position[pieceIndex] != -1) {
+            this.neededCount[previous.ordinal()]--;
+            this.neededCount[priority.ordinal()]++;
+        }
+
+        this.priorities[pieceIndex] = priority;
+
+        return previous;
+    }
+
+    /**
+     * Increases the availability of a piece, after a remote peer announced it has it
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void increaseAvailability(int pieceIndex) {
+        int currentAvailability = this.availability[pieceIndex]++;
+
+        if (this.position[pieceIndex] == -1) {
+            return;
+        }
+
+        if (currentAvailability == this.maxAvailability) {
+            this.growBuckets();
+        }
+
+        // Move the piece to the end of its bucket, and make it the first piece of the next bucket
+        int last = this.bucketStart[currentAvailability + 1] - 1;
+        this.swap(this.position[pieceIndex], last);
+        this.bucketStart[currentAvailability + 1]--;
+    }
+
+    /**
+     * Decreases the availability of a piece, after a remote peer that has it disconnected
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void decreaseAvailability(int pieceIndex) {
+        int currentAvailability = this.availability[pieceIndex]--;
+
+        if (this.position[pieceIndex] == -1) {
+            return;
+        }
+
+        // Move the piece to the start of its bucket, and make it the last piece of the previous bucket
+        int first = this.bucketStart[currentAvailability];
+        this.swap(this.position[pieceIndex], first);
+        this.bucketStart[currentAvailability]++;
+    }
+
+    /**
+     * Removes a piece from the needed pieces, once the local peer has it
+     *
+     * @param pieceIndex   Index of the piece
+     */
+    public void removePiece(int pieceIndex) {
+        if (this.position[pieceIndex] == -1) {
+            return;
+        }
+
+        // Move the piece to the end of every bucket from its own to the last one, so it ends up as the last needed
+        // piece, and every bucket keeps its other pieces
+        for (int a = this.availability[pieceIndex]; a <= this.maxAvailability; a++) {
+            int last = this.bucketStart[a + 1] - 1;
+            this.swap(this.position[pieceIndex], last);
+
+            if (a < this.maxAvailability) {
+                this.bucketStart[a + 1]--;
+            }
+        }
+
+        this.size--;
+        this.bucketStart[this.maxAvailability + 1] = this.size;
+        this.position[pieceIndex] = -1;
+        this.neededCount[this.priorities[pieceIndex].ordinal()]--;
+    }
+
+    /**
+     * Claims the rarest piece of the highest priority the remote peer has and the local peer doesn't have or
+     * requested, by setting its status from NOT_HAVE to REQUESTED. Ties between equally rare pieces are broken
+     * randomly.
+     *
+     * @param remotePieces   Pieces of the remote peer
+     * @param statuses       Status of the local pieces
+     * @return               Claimed piece index, -1 if no such piece
+     */
+    public int pick(PieceBitfield remotePieces, PieceStatusArray statuses) {
+        for (int p = PRIORITIES.length - 1; p > PiecePriority.SKIP.ordinal(); p--) {
+            if (this.neededCount[p] == 0) {
+                continue;
+            }
+
+            int pieceIndex = this.pick(remotePieces, statuses, PRIORITIES[p]);
+            if (pieceIndex >= 0) {
+                return pieceIndex;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Claims the first piece in a range that the remote peer has and the local peer doesn't have, requested or skip,
+     * by setting its status from NOT_HAVE to REQUESTED. This ignores availability and priorities, and is used for the
+     * read-ahead window of a stream, where the next piece to be read is needed first.
+     *
+     * @param remotePieces   Pieces of the remote peer
+     * @param statuses       Status of the local pieces
+     * @param from           First piece of the range
+     * @param to             Piece after the last piece of the range
+     * @return               Claimed piece index, -1 if no such piece
+     */
+    public int pickInOrder(PieceBitfield remotePieces, PieceStatusArray statuses, int from, int to) {
+        for (int pieceIndex = remotePieces.nextSetBit(from); pieceIndex >= 0 && pieceIndex < to;
+             pieceIndex = remotePieces.nextSetBit(pieceIndex + 1)) {
+            if (this.priorities[pieceIndex] != PiecePriority.SKIP &&
+                    statuses.compareAndSet(pieceIndex, PieceStatus.NOT_HAVE, PieceStatus.REQUESTED)) {
+                return pieceIndex;
+            }
+        }
+
+        return -1;
+    }
+
+
+    private int pick(PieceBitfield remotePieces, PieceStatusArray statuses, PiecePriority priority) {
+        for (int a = 0; a <= this.maxAvailability; a++) {
+            int start = this.bucketStart[a];
+            int length = this.bucketStart[a + 1] - start;
+
+            if (length == 0) {
+                continue;
+            }
+
+            int offset = ThreadLocalRandom.current().nextInt(length);
+
+            for (int i = 0; i < length; i++) {
+                int pieceIndex = this.order[start + (offset + i) % length];
+
+                // Another thread might claim the same piece first, in which case the search goes on
+                if (this.priorities[pieceIndex] == priority && remotePieces.get(pieceIndex) &&
+                        statuses.compareAndSet(pieceIndex, PieceStatus.NOT_HAVE, PieceStatus.REQUESTED)) {
+                    return pieceIndex;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private void growBuckets() {
+        this.maxAvailability++;
+
+        if (this.bucketStart.length < this.maxAvailability + 2) {
+            this.bucketStart = Arrays.copyOf(this.bucketStart, this.bucketStart.length * 2);
+        }
+
+        // The new bucket is empty, so it starts at the end of the needed pieces
+        this.bucketStart[this.maxAvailability + 1] = this.size;
+    }
+
+    private void swap(int i, int j) {
+        int pieceI = this.order[i];
+        int pieceJ = this.order[j];
+
+        this.order[i] = pieceJ;
+        this.order[j] = pieceI;
+        this.position[pieceJ] = i;
+        this.position[pieceI] = j;
+    }
+}
@@ -0,0 +1,10 @@
+package project.connection.piece;
+
+public enum PiecePriority {
+
+    // Never requested, and the local peer isn't interested in remote peers for it
+    SKIP,
+    LOW,
+    NORMAL,
+    HIGH;
+}
@@ -0,0 +1,97 @@
+package project.connection.piece;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class PieceStatusArray {
+
+    /*
+     * Status of every local piece, kept in a single atomic array so connection threads can claim, cancel and commit
+     * pieces with compare-and-set transitions instead of a shared lock:
+     *
+     *     NOT_HAVE --claim--> REQUESTED --commit--> HAVE
+     *         ^                   |
+     *         +------cancel-------+
+     *
+     * The number of pieces in each status is kept along, so e.g. the number of unrequested pieces is known without
+     * scanning the array. A count is updated right after its transition, so it may briefly lag behind the array.
+     */
+
+    private static final PieceStatus[] STATUSES = PieceStatus.values();
+
+    private final AtomicIntegerArray statuses;
+    private final AtomicInteger[] counts;
+
+    public PieceStatusArray(int numberOfPieces) {
+        this.statuses = new AtomicIntegerArray(numberOfPieces);
+
+        // All pieces start with the status of ordinal 0
+        this.counts = new AtomicInteger[STATUSES.length];
+        for (int i = 0; i < STATUSES.length; i++) {
+            this.counts[i] = new AtomicInteger(i == 0 ? numberOfPieces : 0);
+        }
+    }
+
+
+    public int length() {
+        return this.statuses.length();
+    }
+
+    public PieceStatus get(int pieceIndex) {
+        return STATUSES[this.statuses.get(pieceIndex)];
+    }
+
+    public void set(int pieceIndex, PieceStatus status) {
+        this.getAndSet(pieceIndex, status);
+    }
+
+    /**
+     * Returns the number of pieces with a given status
+     *
+     * @param status   Status to count
+     * @return         Number of pieces
+     */
+    public int count(PieceStatus status) {
+        return this.counts[status.ordinal()].get();
+    }
+
+    /**
+     * Atomically sets the status of a piece if it's currently the expected status
+     *
+     * @param pieceIndex   Index of the piece
+     * @param expected     Expected current status
+     * @param status       New status
+     * @return             Whether the status was set
+     */
+    public boolean compareAndSet(int pieceIndex, PieceStatus expected, PieceStatus status) {
+        if (!this.statuses.compareAndSet(pieceIndex, expected.ordinal(), status.ordinal())) {
+            return false;
+        }
+
+        this.updateCounts(expected.ordinal(), status.ordinal());
+
+        return true;
+    }
+
+    /**
+     * Atomically sets the status of a piece
+     *
+     * @param pieceIndex   Index of the piece
+     * @param status       New status
+     * @return             Status of the piece before it was set
+     */
+    public PieceStatus getAndSet(int pieceIndex, PieceStatus status) {
+        int previous = this.statuses.getAndSet(pieceIndex, status.ordinal());
+        this.updateCounts(previous, status.ordinal());
+
+        return STATUSES[previous];
+    }
+
+
+    private void updateCounts(int previous, int current) {
+        if (previous != current) {
+            this.counts[previous].decrementAndGet();
+            this.counts[current].incrementAndGet();
+        }
+    }
+}
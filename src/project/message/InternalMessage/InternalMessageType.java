@@ -7,7 +7,13 @@ public enum InternalMessageType {
     RECEIVED((byte) 2),
     TERMINATE((byte) 3),
     NEW_LOCAL_PIECE((byte) 4),
-    UNKNOWN((byte) 10);
+    VERIFIED((byte) 5),
+    PIECE_RELEASED((byte) 6),
+    COMMITTED((byte) 7),
+    CHECK_TIMEOUTS((byte) 8),
+    CANCEL_REQUEST((byte) 9),
+    PRIORITY_CHANGED((byte) 10),
+    UNKNOWN((byte) 11);
 
 
     private final byte typeId;
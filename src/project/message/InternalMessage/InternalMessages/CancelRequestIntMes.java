@@ -0,0 +1,27 @@
+package project.message.InternalMessage.InternalMessages;
+
+import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessageType;
+
+public class CancelRequestIntMes extends InternalMessage {
+    private int pieceIndex;
+    // -1 if the whole piece was received
+    private int blockIndex;
+
+    public CancelRequestIntMes(int pieceIndex, int blockIndex)
+    {
+        super(InternalMessageType.CANCEL_REQUEST);
+        this.pieceIndex = pieceIndex;
+        this.blockIndex = blockIndex;
+    }
+
+    public int GetPieceIndex()
+    {
+        return pieceIndex;
+    }
+
+    public int GetBlockIndex()
+    {
+        return blockIndex;
+    }
+}
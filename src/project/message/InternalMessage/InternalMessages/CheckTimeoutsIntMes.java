@@ -0,0 +1,11 @@
+package project.message.InternalMessage.InternalMessages;
+
+import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessageType;
+
+public class CheckTimeoutsIntMes extends InternalMessage {
+    public CheckTimeoutsIntMes() {
+        super(InternalMessageType.CHECK_TIMEOUTS);
+    }
+
+}
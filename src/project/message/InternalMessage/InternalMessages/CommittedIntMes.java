@@ -0,0 +1,33 @@
+package project.message.InternalMessage.InternalMessages;
+
+import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessageType;
+
+public class CommittedIntMes extends InternalMessage {
+    private int pieceIndex;
+    private int srcPeerId;
+    private boolean written;
+
+    public CommittedIntMes(int pieceIndex, int srcPeerId, boolean written)
+    {
+        super(InternalMessageType.COMMITTED);
+        this.pieceIndex = pieceIndex;
+        this.srcPeerId = srcPeerId;
+        this.written = written;
+    }
+
+    public int GetPieceIndex()
+    {
+        return pieceIndex;
+    }
+
+    public int GetSourcePeerId()
+    {
+        return srcPeerId;
+    }
+
+    public boolean IsWritten()
+    {
+        return written;
+    }
+}
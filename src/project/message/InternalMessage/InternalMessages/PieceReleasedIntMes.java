@@ -0,0 +1,19 @@
+package project.message.InternalMessage.InternalMessages;
+
+import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessageType;
+
+public class PieceReleasedIntMes extends InternalMessage {
+    private int pieceIndex;
+
+    public PieceReleasedIntMes(int pieceIndex)
+    {
+        super(InternalMessageType.PIECE_RELEASED);
+        this.pieceIndex = pieceIndex;
+    }
+
+    public int GetPieceIndex()
+    {
+        return pieceIndex;
+    }
+}
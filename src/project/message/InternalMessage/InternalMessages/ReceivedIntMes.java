@@ -3,11 +3,13 @@ package project.message.InternalMessage.InternalMessages;
 import project.message.InternalMessage.InternalMessage;
 import project.message.InternalMessage.InternalMessageType;
 
+import java.nio.ByteBuffer;
+
 public class ReceivedIntMes extends InternalMessage {
     private int pieceIndex;
-    private byte[] pieceContent;
+    private ByteBuffer pieceContent;
     private int srcPeerId;    
-    public ReceivedIntMes(int pieceIndex, byte[] pieceContent, int srcPeerId)
+    public ReceivedIntMes(int pieceIndex, ByteBuffer pieceContent, int srcPeerId)
     {
         super(InternalMessageType.RECEIVED);
         this.pieceContent = pieceContent;
@@ -20,7 +22,7 @@ public class ReceivedIntMes extends InternalMessage {
         return pieceIndex;
     }
 
-    public byte[] GetPieceContent()
+    public ByteBuffer GetPieceContent()
     {
         return pieceContent;
     }
@@ -0,0 +1,42 @@
+package project.message.InternalMessage.InternalMessages;
+
+import project.message.InternalMessage.InternalMessage;
+import project.message.InternalMessage.InternalMessageType;
+
+import java.nio.ByteBuffer;
+
+public class VerifiedIntMes extends InternalMessage {
+    private int pieceIndex;
+    private ByteBuffer pieceContent;
+    private int srcPeerId;
+    private boolean valid;
+
+    public VerifiedIntMes(int pieceIndex, ByteBuffer pieceContent, int srcPeerId, boolean valid)
+    {
+        super(InternalMessageType.VERIFIED);
+        this.pieceIndex = pieceIndex;
+        this.pieceContent = pieceContent;
+        this.srcPeerId = srcPeerId;
+        this.valid = valid;
+    }
+
+    public int GetPieceIndex()
+    {
+        return pieceIndex;
+    }
+
+    public ByteBuffer GetPieceContent()
+    {
+        return pieceContent;
+    }
+
+    public int GetSourcePeerId()
+    {
+        return srcPeerId;
+    }
+
+    public boolean IsValid()
+    {
+        return valid;
+    }
+}
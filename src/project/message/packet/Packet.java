@@ -72,6 +72,12 @@ public abstract class Packet extends Message{
             case PIECE:
                 packet = new PiecePacket();
                 break;
+            case CANCEL:
+                packet = new CancelPacket();
+                break;
+            case EXTENSIONS:
+                packet = new ExtensionsPacket();
+                break;
             case HANDSHAKE:
                 packet = new HandshakePacket(messagePayload);
                 break;
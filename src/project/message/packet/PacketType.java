@@ -11,6 +11,8 @@ public enum PacketType {
     REQUEST((byte) 6, 4),
     PIECE((byte) 7, -1),
     HANDSHAKE((byte) 8, 32),
+    CANCEL((byte) 9, 4),
+    EXTENSIONS((byte) 11, 4),
     UNKNOWN((byte) 10, -1);
 
 
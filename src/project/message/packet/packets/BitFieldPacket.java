@@ -4,8 +4,9 @@ import project.exceptions.NetworkException;
 import project.message.packet.Packet;
 import project.message.packet.PacketType;
 
+import project.connection.piece.PieceBitfield;
+
 import java.nio.ByteBuffer;
-import java.util.BitSet;
 
 public class BitFieldPacket extends Packet {
 
@@ -25,31 +26,38 @@ public class BitFieldPacket extends Packet {
     protected static final int LENGTH_FIELD_LENGTH = 4;
     protected static final int TYPE_FIELD_LENGTH = 1;
 
-    private BitSet bitfield;
+    // Wire format of the bitfield, see PieceBitfield
+    private byte[] bitfieldBytes;
 
     public BitFieldPacket() {
         super(PacketType.BITFIELD);
 
-        this.bitfield = null;
+        this.bitfieldBytes = null;
     }
 
 
-    public void setData(BitSet bitfield) {
-        this.bitfield = bitfield;
+    public void setData(PieceBitfield bitfield) {
+        this.bitfieldBytes = bitfield.toByteArray();
     }
 
-    public BitSet getBitfield() {
-        return this.bitfield;
+    /**
+     * Returns the received bitfield
+     *
+     * @param numberOfPieces   Number of pieces of the target file
+     * @return                 Parsed bitfield
+     */
+    public PieceBitfield getBitfield(int numberOfPieces) {
+        return PieceBitfield.fromBytes(this.bitfieldBytes, 0, this.bitfieldBytes.length, numberOfPieces);
     }
 
 
     @Override
     public byte[] build() throws NetworkException {
-        if(this.bitfield == null) {
+        if(this.bitfieldBytes == null) {
             throw new NetworkException("[BITFIELD PACKET] trying to build a packet with invalid data");
         }
 
-        byte[] bitfieldBytes = this.bitfield.toByteArray();
+        byte[] bitfieldBytes = this.bitfieldBytes;
 
         int messageLength = LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + bitfieldBytes.length;
         int payloadLength = TYPE_FIELD_LENGTH + bitfieldBytes.length;
@@ -82,12 +90,9 @@ public class BitFieldPacket extends Packet {
         // Calculate the packet's length
         int dataLength = payload.length - TYPE_FIELD_LENGTH;
 
-        // Parse the data
-        this.bitfield = BitSet.valueOf(
-                ByteBuffer.allocate(dataLength)
-                        .put(payload, TYPE_FIELD_LENGTH, dataLength)
-                        .rewind()
-        );
+        // Parse the data. It's turned into a bitfield once the number of pieces is known, see #getBitfield
+        this.bitfieldBytes = new byte[dataLength];
+        System.arraycopy(payload, TYPE_FIELD_LENGTH, this.bitfieldBytes, 0, dataLength);
 
         return true;
     }
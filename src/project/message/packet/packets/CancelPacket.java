@@ -0,0 +1,138 @@
+package project.message.packet.packets;
+
+import project.exceptions.NetworkException;
+import project.message.packet.Packet;
+import project.message.packet.PacketType;
+
+import java.nio.ByteBuffer;
+
+public class CancelPacket extends Packet {
+
+    /*
+        Cancel Packet Structure
+
+        + - + - + - + - + - + - + - + - + - + - + - +
+        | Packet Length | Packet Type | Packet Data |
+        + - + - + - + - + - + - + - + - + - + - + - +
+
+        Where:
+        - Packet Length  = 4 bytes
+        - Packet Type    = 1 byte
+        - Packet Data    = 4 bytes (Piece Index), or 12 bytes (Piece Index + Block Offset + Block Length) for a
+                           single block of the piece. Blocks are only used once both peers announced support for
+                           them, see ExtensionsPacket
+     */
+
+    protected static final int LENGTH_FIELD_LENGTH = 4;
+    protected static final int TYPE_FIELD_LENGTH = 1;
+    protected static final int PIECE_INDEX_FIELD_LENGTH = 4;
+    protected static final int BLOCK_OFFSET_FIELD_LENGTH = 4;
+    protected static final int BLOCK_LENGTH_FIELD_LENGTH = 4;
+
+    private int pieceIndex;
+    // -1 if the whole piece is cancelled
+    private int blockOffset;
+    private int blockLength;
+
+    public CancelPacket() {
+        super(PacketType.CANCEL);
+
+        this.pieceIndex = -1;
+        this.blockOffset = -1;
+        this.blockLength = -1;
+    }
+
+
+    public void setData(int pieceIndex) {
+        this.setData(pieceIndex, -1, -1);
+    }
+
+    public void setData(int pieceIndex, int blockOffset, int blockLength) {
+        this.pieceIndex = pieceIndex;
+        this.blockOffset = blockOffset;
+        this.blockLength = blockLength;
+    }
+
+    public int getPieceIndex() {
+        return this.pieceIndex;
+    }
+
+    public boolean isBlock() {
+        return this.blockOffset != -1;
+    }
+
+    public int getBlockOffset() {
+        return this.blockOffset;
+    }
+
+    public int getBlockLength() {
+        return this.blockLength;
+    }
+
+
+    @Override
+    public byte[] build() throws NetworkException {
+        if(this.pieceIndex == -1) {
+            throw new NetworkException("[CANCEL PACKET] trying to build a packet with invalid data");
+        }
+
+        int blockFieldsLength = this.isBlock() ? BLOCK_OFFSET_FIELD_LENGTH + BLOCK_LENGTH_FIELD_LENGTH : 0;
+        int messageLength = LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + blockFieldsLength;
+        int payloadLength = TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + blockFieldsLength;
+
+        byte[] message = new byte[messageLength];
+
+        // Set first 4 bytes: the length of the payload + the packet type field
+        System.arraycopy(
+                ByteBuffer.allocate(LENGTH_FIELD_LENGTH).putInt(payloadLength).array(), 0,
+                message, 0,
+                LENGTH_FIELD_LENGTH);
+
+        // Set next 1 byte: the packet type
+        message[LENGTH_FIELD_LENGTH] = super.type.getTypeId();
+
+        // Set next 4 bytes: the piece index
+        System.arraycopy(
+                ByteBuffer.allocate(PIECE_INDEX_FIELD_LENGTH).putInt(this.pieceIndex).array(), 0,
+                message, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH,
+                PIECE_INDEX_FIELD_LENGTH);
+
+        // Set next 8 bytes, for a block: the block offset and the block length
+        if (this.isBlock()) {
+            ByteBuffer.wrap(message, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH,
+                    blockFieldsLength).putInt(this.blockOffset).putInt(this.blockLength);
+        }
+
+        return message;
+    }
+
+    @Override
+    public boolean parse(byte[] payload) {
+        if (payload[0] != super.type.getTypeId()) {
+            return false;
+        }
+
+        // Parse the piece index
+        ByteBuffer pieceIndexBuffer = ByteBuffer.allocate(PIECE_INDEX_FIELD_LENGTH)
+                .put(payload, TYPE_FIELD_LENGTH, PIECE_INDEX_FIELD_LENGTH);
+        pieceIndexBuffer.rewind();
+        this.pieceIndex = pieceIndexBuffer.getInt();
+
+        // Parse the block offset and length, if the packet is for a single block
+        if (payload.length >= TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + BLOCK_OFFSET_FIELD_LENGTH +
+                BLOCK_LENGTH_FIELD_LENGTH) {
+            ByteBuffer blockBuffer = ByteBuffer.wrap(payload, TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH,
+                    BLOCK_OFFSET_FIELD_LENGTH + BLOCK_LENGTH_FIELD_LENGTH);
+            this.blockOffset = blockBuffer.getInt();
+            this.blockLength = blockBuffer.getInt();
+        }
+
+        return true;
+    }
+    
+    public String dataString()
+    {
+        return "pieceIndex: " + this.pieceIndex + (this.isBlock() ?
+                ", blockOffset: " + this.blockOffset + ", blockLength: " + this.blockLength : "");
+    }
+}
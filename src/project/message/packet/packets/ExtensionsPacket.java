@@ -0,0 +1,82 @@
+package project.message.packet.packets;
+
+import project.exceptions.NetworkException;
+import project.message.packet.Packet;
+import project.message.packet.PacketType;
+
+import java.nio.ByteBuffer;
+
+public class ExtensionsPacket extends Packet {
+
+    /*
+        Extensions Packet Structure
+
+        + - + - + - + - + - + - + - + - + - + - + - +
+        | Packet Length | Packet Type | Packet Data |
+        + - + - + - + - + - + - + - + - + - + - + - +
+
+        Where:
+        - Packet Length  = 4 bytes
+        - Packet Type    = 1 byte
+        - Packet Data    = 4 bytes (Extension Flags)
+
+        Announces the protocol extensions the local peer supports. It's sent right after the handshake, before the
+        Bitfield packet, so the remote peer knows about them before any piece is requested. An extension is only used
+        once both peers announced it.
+        The handshake's zero bits can't carry the flags, since peers that don't know about extensions reject a
+        handshake whose zero bits aren't all zeros. They ignore packets of an unknown type though, so they simply
+        never see this packet.
+     */
+
+    protected static final int LENGTH_FIELD_LENGTH = 4;
+    protected static final int TYPE_FIELD_LENGTH = 1;
+    protected static final int FLAGS_FIELD_LENGTH = 4;
+
+    // Request and Piece packets can carry a single block of a piece
+    public static final int BLOCKS = 1;
+
+    private int flags;
+
+    public ExtensionsPacket() {
+        super(PacketType.EXTENSIONS);
+
+        this.flags = 0;
+    }
+
+
+    public void setData(int flags) {
+        this.flags = flags;
+    }
+
+    public boolean supports(int extension) {
+        return (this.flags & extension) != 0;
+    }
+
+
+    @Override
+    public byte[] build() throws NetworkException {
+        int payloadLength = TYPE_FIELD_LENGTH + FLAGS_FIELD_LENGTH;
+
+        return ByteBuffer.allocate(LENGTH_FIELD_LENGTH + payloadLength)
+                .putInt(payloadLength)
+                .put(super.type.getTypeId())
+                .putInt(this.flags)
+                .array();
+    }
+
+    @Override
+    public boolean parse(byte[] payload) {
+        if (payload[0] != super.type.getTypeId() || payload.length < TYPE_FIELD_LENGTH + FLAGS_FIELD_LENGTH) {
+            return false;
+        }
+
+        this.flags = ByteBuffer.wrap(payload, TYPE_FIELD_LENGTH, FLAGS_FIELD_LENGTH).getInt();
+
+        return true;
+    }
+
+    public String dataString()
+    {
+        return "flags: " + this.flags;
+    }
+}
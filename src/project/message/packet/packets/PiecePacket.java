@@ -18,30 +18,49 @@ public class PiecePacket extends Packet {
         Where:
         - Packet Length = 4 bytes
         - Packet Type   = 1 byte
-        - Packet Data   = 4 + x bytes (Piece Index + Piece Content)
+        - Packet Data   = 4 + x bytes (Piece Index + Piece Content), or 8 + x bytes (Piece Index + Block Offset +
+                          Block Content) for a single block of the piece. Blocks are only used once both peers
+                          announced support for them, see ExtensionsPacket
      */
 
     protected static final int LENGTH_FIELD_LENGTH = 4;
     protected static final int TYPE_FIELD_LENGTH = 1;
     protected static final int PIECE_INDEX_FIELD_LENGTH = 4;
+    protected static final int BLOCK_OFFSET_FIELD_LENGTH = 4;
 
     private int pieceIndex;
-    private byte[] pieceContent;
+    // -1 if the packet holds the whole piece
+    private int blockOffset;
+    private ByteBuffer pieceContent;
 
     public PiecePacket() {
         super(PacketType.PIECE);
 
         this.pieceIndex = -1;
+        this.blockOffset = -1;
         this.pieceContent = null;
     }
 
 
-    public void setData(int pieceIndex, byte[] pieceContent) {
+    public void setData(int pieceIndex, ByteBuffer pieceContent) {
+        this.setData(pieceIndex, -1, pieceContent);
+    }
+
+    public void setData(int pieceIndex, int blockOffset, ByteBuffer pieceContent) {
         this.pieceIndex = pieceIndex;
+        this.blockOffset = blockOffset;
         this.pieceContent = pieceContent;
     }
 
-    public byte[] getPieceContent() {
+    public boolean isBlock() {
+        return this.blockOffset != -1;
+    }
+
+    public int getBlockOffset() {
+        return this.blockOffset;
+    }
+
+    public ByteBuffer getPieceContent() {
         return this.pieceContent;
     }
 
@@ -56,8 +75,37 @@ public class PiecePacket extends Packet {
             throw new NetworkException("[PIECE PACKET] trying to build a packet with invalid data");
         }
 
-        int messageLength = LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + this.pieceContent.length;
-        int payloadLength = TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + this.pieceContent.length;
+        int contentLength = this.pieceContent.remaining();
+        byte[] header = this.buildHeader();
+
+        byte[] message = new byte[header.length + contentLength];
+
+        // Set first 9 (or 13) bytes: the packet header
+        System.arraycopy(header, 0, message, 0, header.length);
+
+        // Set next x bytes: the piece content. The content might be a view of the target file, so it's read through
+        // a duplicate in order to leave its position untouched
+        this.pieceContent.duplicate().get(message, header.length, contentLength);
+
+        return message;
+    }
+
+    /**
+     * Build only the header of the packet, which is everything but the piece content.
+     * This allows sending the piece content straight from the target file, without copying it into the message.
+     *
+     * @return byte[] holding the length header, the packet type, the piece index and the block offset of a block
+     */
+    public byte[] buildHeader() throws NetworkException {
+        if(this.pieceContent == null || this.pieceIndex == -1) {
+            throw new NetworkException("[PIECE PACKET] trying to build a packet with invalid data");
+        }
+
+        int contentLength = this.pieceContent.remaining();
+
+        int blockFieldsLength = this.isBlock() ? BLOCK_OFFSET_FIELD_LENGTH : 0;
+        int messageLength = LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + blockFieldsLength;
+        int payloadLength = TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH + blockFieldsLength + contentLength;
 
         byte[] message = new byte[messageLength];
 
@@ -76,10 +124,11 @@ public class PiecePacket extends Packet {
                 message, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH,
                 PIECE_INDEX_FIELD_LENGTH);
 
-        // Set next x bytes: the piece content
-        System.arraycopy(this.pieceContent, 0,
-                message, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH,
-                this.pieceContent.length);
+        // Set next 4 bytes, for a block: the block offset
+        if (this.isBlock()) {
+            ByteBuffer.wrap(message, LENGTH_FIELD_LENGTH + TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH,
+                    BLOCK_OFFSET_FIELD_LENGTH).putInt(this.blockOffset);
+        }
 
         return message;
     }
@@ -101,15 +150,16 @@ public class PiecePacket extends Packet {
         this.pieceIndex = pieceIndexBuffer.getInt();
 
         // Parse the piece content
-        this.pieceContent = new byte[contentLength];
+        byte[] content = new byte[contentLength];
         System.arraycopy(payload, TYPE_FIELD_LENGTH + PIECE_INDEX_FIELD_LENGTH,
-                this.pieceContent, 0, contentLength);
+                content, 0, contentLength);
+        this.pieceContent = ByteBuffer.wrap(content);
 
         return true;
     }
     
     public String dataString()
     {
-        return "pieceIndex: " + this.pieceIndex;
+        return "pieceIndex: " + this.pieceIndex + (this.isBlock() ? ", blockOffset: " + this.blockOffset : "");
     }
 }
@@ -0,0 +1,194 @@
+package project.storage;
+
+import project.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class BitfieldSidecar {
+
+    /*
+        Bitfield Sidecar Structure
+
+        + - + - + - + - + - + - + - + - + - + - + - + - + - + - + - +
+        | Magic | File Size | Piece Size | Number of Pieces | Bitfield |
+        + - + - + - + - + - + - + - + - + - + - + - + - + - + - + - +
+
+        Where:
+        - Magic            = 4 bytes
+        - File Size        = 8 bytes
+        - Piece Size       = 4 bytes
+        - Number of Pieces = 4 bytes
+        - Bitfield         = ceil(Number of Pieces / 8) bytes, bit i of byte j is piece 8 * j + i
+
+        The sidecar lives next to the partial target file and remembers which pieces were committed to it.
+        A bit is only set after the piece content was forced to the storage device, so after a crash the sidecar
+        never claims a piece the target file doesn't hold.
+     */
+
+    private static final int MAGIC = 0x50424631; // "PBF1"
+    private static final int HEADER_LENGTH = 20;
+
+    private final Configuration config;
+    private final PieceStorage storage;
+    private final FileChannel channel;
+
+    private final byte[] bitfield;
+
+    // Range of bitfield bytes that were changed since the last sync
+    private int dirtyFrom;
+    private int dirtyTo;
+    private int pendingPieces;
+
+    public BitfieldSidecar(File file, Configuration config, PieceStorage storage) throws IOException {
+        this.config = config;
+        this.storage = storage;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        this.bitfield = new byte[(int) (((long) this.config.getNumberOfPieces() + 7) / 8)];
+
+        this.resetDirtyRange();
+    }
+
+
+    /**
+     * Loads the pieces recorded in the sidecar. If the sidecar is missing or doesn't match the current
+     * configuration, it's reset and no pieces are returned.
+     *
+     * @return               Pieces that were committed to the target file
+     * @throws IOException   Throws an IOException if reading or resetting the sidecar failed
+     */
+    public BitSet load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        ByteBuffer content = ByteBuffer.wrap(this.bitfield);
+
+        boolean valid = this.channel.size() == HEADER_LENGTH + this.bitfield.length
+                && this.readFully(header, 0) && this.readFully(content, HEADER_LENGTH);
+
+        if (valid) {
+            header.flip();
+
+            valid = header.getInt() == MAGIC
+                    && header.getLong() == this.config.getFileSize()
+                    && header.getInt() == this.config.getPieceSize()
+                    && header.getInt() == this.config.getNumberOfPieces();
+        }
+
+        if (!valid) {
+            this.reset();
+            return new BitSet(this.config.getNumberOfPieces());
+        }
+
+        return BitSet.valueOf(this.bitfield);
+    }
+
+    /**
+     * Marks a piece as committed. The mark is persisted in batches of Configuration#getResumeSyncInterval pieces.
+     * The piece must already be forced to the storage device (see DiskWriter#sync), so persisting the marks doesn't
+     * force the target file again.
+     *
+     * @param pieceIndex     Index of the committed piece
+     * @throws IOException   Throws an IOException if syncing the sidecar failed
+     */
+    public void markHave(int pieceIndex) throws IOException {
+        int byteIndex = pieceIndex / 8;
+
+        this.bitfield[byteIndex] |= (byte) (1 << (pieceIndex % 8));
+        this.dirtyFrom = Math.min(this.dirtyFrom, byteIndex);
+        this.dirtyTo = Math.max(this.dirtyTo, byteIndex + 1);
+
+        if (++this.pendingPieces >= this.config.getResumeSyncInterval()) {
+            this.writeMarks();
+        }
+    }
+
+    /**
+     * Persists all pending marks. The target file is forced first, and only then the changed bitfield bytes are
+     * written and forced, so a mark never reaches the storage device before its piece does.
+     *
+     * @throws IOException   Throws an IOException if syncing the sidecar failed
+     */
+    public void sync() throws IOException {
+        if (this.pendingPieces == 0) {
+            return;
+        }
+
+        this.storage.flush();
+        this.writeMarks();
+    }
+
+    public void close() throws IOException {
+        this.sync();
+        this.channel.close();
+    }
+
+
+    /**
+     * Writes and forces the changed bitfield bytes, without forcing the target file
+     *
+     * @throws IOException   Throws an IOException if writing the sidecar failed
+     */
+    private void writeMarks() throws IOException {
+        ByteBuffer dirty = ByteBuffer.wrap(this.bitfield, this.dirtyFrom, this.dirtyTo - this.dirtyFrom);
+        long offset = HEADER_LENGTH + this.dirtyFrom;
+
+        while (dirty.hasRemaining()) {
+            offset += this.channel.write(dirty, offset);
+        }
+
+        this.channel.force(false);
+        this.resetDirtyRange();
+    }
+
+    /**
+     * Rewrites the sidecar with the current configuration and an empty bitfield
+     *
+     * @throws IOException   Throws an IOException if writing the sidecar failed
+     */
+    private void reset() throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(HEADER_LENGTH + this.bitfield.length)
+                .putInt(MAGIC)
+                .putLong(this.config.getFileSize())
+                .putInt(this.config.getPieceSize())
+                .putInt(this.config.getNumberOfPieces());
+        content.rewind();
+
+        Arrays.fill(this.bitfield, (byte) 0);
+
+        this.channel.truncate(0);
+
+        long offset = 0;
+        while (content.hasRemaining()) {
+            offset += this.channel.write(content, offset);
+        }
+
+        this.channel.force(false);
+        this.resetDirtyRange();
+    }
+
+    private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, offset);
+
+            if (read < 0) {
+                return false;
+            }
+
+            offset += read;
+        }
+
+        return true;
+    }
+
+    private void resetDirtyRange() {
+        this.dirtyFrom = this.bitfield.length;
+        this.dirtyTo = 0;
+        this.pendingPieces = 0;
+    }
+}
@@ -0,0 +1,63 @@
+package project.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BufferPool {
+
+    /*
+     * Pool of piece sized buffers used on the receive path: a received piece is read from the socket straight into
+     * a pooled buffer, and the buffer goes back to the pool once the piece is committed to the target file (or
+     * rejected). In the steady state, receiving pieces doesn't allocate at all.
+     * Buffers are allocated on demand, and at most maxPooledBuffers free buffers are kept, so a burst of pieces
+     * doesn't pin memory forever.
+     */
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+
+    public BufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+
+    /**
+     * Takes a buffer out of the pool, allocating a new one if the pool is empty.
+     * This is safe to call from multiple threads at the same time.
+     *
+     * @param length   Number of bytes needed, at most the buffer size
+     * @return         Heap buffer with its position at 0 and its limit at the given length
+     */
+    public ByteBuffer acquire(int length) {
+        if (length < 0 || length > this.bufferSize) {
+            throw new IllegalArgumentException("Can't acquire a buffer of " + length + " bytes from a pool of " +
+                    this.bufferSize + " byte buffers");
+        }
+
+        ByteBuffer buffer = this.freeBuffers.poll();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(this.bufferSize);
+        }
+
+        buffer.clear().limit(length);
+
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used by the caller afterwards.
+     * Buffers that weren't acquired from this pool are ignored, as well as buffers given back to a full pool.
+     *
+     * @param buffer   Buffer to give back
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() != this.bufferSize) {
+            return;
+        }
+
+        this.freeBuffers.offer(buffer);
+    }
+}
@@ -0,0 +1,201 @@
+package project.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class DiskWriter extends Thread {
+
+    /*
+     * Dedicated thread committing received pieces to the target file, so disk writes never block the
+     * LocalPeerManager thread.
+     * Every time the writer wakes up it takes all queued pieces at once, sorts them, and writes each run of adjacent
+     * pieces with a single gathering write. Written pieces are forced to the storage device in batches of
+     * Configuration#getFsyncBatchSize pieces, or once the oldest of them waited Configuration#getFsyncMaxDelay
+     * milliseconds. A piece is only reported as committed (and marked in the sidecar) once it's durable.
+     */
+
+    // Queued by #close to stop the writer once all pieces queued before it are committed
+    private static final PendingWrite STOP = new PendingWrite(-1, null, null);
+
+    private final PieceStorage storage;
+    // Null if resuming is disabled
+    private final BitfieldSidecar sidecar;
+
+    private final int fsyncBatchSize;
+    private final long fsyncMaxDelay;
+
+    private final BlockingQueue<PendingWrite> queue;
+
+    // Pieces that were written but not forced yet, and when the oldest of them was written
+    private final List<PendingWrite> unsynced;
+    private long oldestUnsynced;
+
+    public DiskWriter(PieceStorage storage, BitfieldSidecar sidecar, int fsyncBatchSize, long fsyncMaxDelay) {
+        super("DiskWriter");
+
+        this.storage = storage;
+        this.sidecar = sidecar;
+        this.fsyncBatchSize = fsyncBatchSize;
+        this.fsyncMaxDelay = fsyncMaxDelay;
+
+        this.queue = new LinkedBlockingQueue<>();
+        this.unsynced = new ArrayList<>();
+    }
+
+
+    /**
+     * Queues a piece to be committed to the target file
+     *
+     * @param pieceIndex   Index of the piece
+     * @param content      Content of the piece. It must not be changed until the callback is called
+     * @param callback     Called from the writer thread with whether the piece was committed, once it's durable
+     */
+    public void submit(int pieceIndex, ByteBuffer content, Consumer<Boolean> callback) {
+        this.queue.add(new PendingWrite(pieceIndex, content, callback));
+    }
+
+    /**
+     * Commits all queued pieces and stops the writer
+     *
+     * @throws InterruptedException   Throws an InterruptedException if interrupted while waiting for the writer
+     */
+    public void close() throws InterruptedException {
+        this.queue.add(STOP);
+        this.join();
+    }
+
+    public void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        boolean running = true;
+
+        try {
+            while (running) {
+                // Wait for pieces to write, but not beyond the time the written pieces have to be forced
+                PendingWrite first = this.unsynced.isEmpty()
+                        ? this.queue.take()
+                        : this.queue.poll(this.oldestUnsynced + this.fsyncMaxDelay - System.currentTimeMillis(),
+                                TimeUnit.MILLISECONDS);
+
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch);
+                }
+
+                running = !batch.remove(STOP);
+
+                this.write(batch);
+                batch.clear();
+
+                if (!running || this.unsynced.size() >= this.fsyncBatchSize ||
+                        (!this.unsynced.isEmpty() &&
+                                System.currentTimeMillis() - this.oldestUnsynced >= this.fsyncMaxDelay)) {
+                    this.sync();
+                }
+            }
+        } catch (InterruptedException exception) {
+            System.err.println("The disk writer was interrupted, forcing the written pieces");
+            this.sync();
+        }
+    }
+
+
+    /**
+     * Writes a batch of pieces, coalescing adjacent pieces into a single gathering write
+     *
+     * @param batch   Pieces to write
+     */
+    private void write(List<PendingWrite> batch) {
+        batch.sort(Comparator.comparingInt(pendingWrite -> pendingWrite.pieceIndex));
+
+        int runStart = 0;
+
+        for (int i = 1; i <= batch.size(); i++) {
+            // Keep extending the run while the pieces are adjacent
+            if (i < batch.size() && batch.get(i).pieceIndex == batch.get(i - 1).pieceIndex + 1) {
+                continue;
+            }
+
+            List<PendingWrite> run = batch.subList(runStart, i);
+            ByteBuffer[] contents = new ByteBuffer[run.size()];
+
+            for (int j = 0; j < contents.length; j++) {
+                contents[j] = run.get(j).content;
+            }
+
+            try {
+                this.storage.writePieces(run.get(0).pieceIndex, contents);
+
+                if (this.unsynced.isEmpty()) {
+                    this.oldestUnsynced = System.currentTimeMillis();
+                }
+                this.unsynced.addAll(run);
+            } catch (IOException | IllegalArgumentException exception) {
+                System.err.println("An error occurred when trying to write pieces " + run.get(0).pieceIndex + "-" +
+                        run.get(run.size() - 1).pieceIndex + " into the target file");
+
+                for (PendingWrite pendingWrite : run) {
+                    pendingWrite.callback.accept(false);
+                }
+            }
+
+            runStart = i;
+        }
+    }
+
+    /**
+     * Forces all written pieces to the storage device, marks them in the sidecar, and reports them as committed
+     */
+    private void sync() {
+        if (this.unsynced.isEmpty()) {
+            return;
+        }
+
+        boolean durable = true;
+
+        try {
+            this.storage.flush();
+        } catch (IOException exception) {
+            System.err.println("An error occurred when trying to force " + this.unsynced.size() + " pieces into the " +
+                    "target file");
+            durable = false;
+        }
+
+        if (durable && this.sidecar != null) {
+            try {
+                for (PendingWrite pendingWrite : this.unsynced) {
+                    this.sidecar.markHave(pendingWrite.pieceIndex);
+                }
+            } catch (IOException exception) {
+                // The pieces are in the target file, they'll only be received again if the transfer is resumed
+                System.err.println("An error occurred when trying to sync the bitfield sidecar");
+            }
+        }
+
+        for (PendingWrite pendingWrite : this.unsynced) {
+            pendingWrite.callback.accept(durable);
+        }
+
+        this.unsynced.clear();
+    }
+
+
+    private static class PendingWrite {
+
+        private final int pieceIndex;
+        private final ByteBuffer content;
+        private final Consumer<Boolean> callback;
+
+        PendingWrite(int pieceIndex, ByteBuffer content, Consumer<Boolean> callback) {
+            this.pieceIndex = pieceIndex;
+            this.content = content;
+            this.callback = callback;
+        }
+    }
+}
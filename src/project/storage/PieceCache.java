@@ -0,0 +1,124 @@
+package project.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PieceCache {
+
+    /*
+     * Read cache in front of the piece storage, used to serve uploads.
+     * Requests in a swarm are skewed toward the same (rare) pieces, so a small cache absorbs most upload reads.
+     * Cached pieces are held in direct buffers, so the cache never grows the heap, and the total size of the
+     * cached pieces never goes above the configured budget. The least recently used pieces are evicted first.
+     * Only pieces the local peer has are ever read, and their content never changes, so entries are never stale.
+     */
+
+    private final PieceStorage storage;
+    private final long capacity;
+
+    // Access ordered, so iteration starts at the least recently used piece
+    private final LinkedHashMap<Integer, ByteBuffer> pieces;
+    private long size;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public PieceCache(PieceStorage storage, long capacity) {
+        this.storage = storage;
+        this.capacity = capacity;
+
+        this.pieces = new LinkedHashMap<>(16, 0.75f, true);
+        this.size = 0;
+
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+
+    /**
+     * Returns the content of a piece, reading it from the storage if it isn't cached.
+     * A piece bigger than the whole budget is never cached, so it isn't read at all, and the caller sends it straight
+     * from the storage instead. Direct memory is only allocated for pieces that go into the cache.
+     * This is safe to call from multiple threads at the same time.
+     *
+     * @param pieceIndex     Index of the piece
+     * @return               Buffer holding the piece content, with its own position and limit. Null if the piece
+     *                       can't be cached
+     * @throws IOException   Throws an IOException if reading the piece from the storage failed
+     */
+    public ByteBuffer getPiece(int pieceIndex) throws IOException {
+        synchronized (this) {
+            ByteBuffer cached = this.pieces.get(pieceIndex);
+
+            if (cached != null) {
+                this.hits.incrementAndGet();
+                return cached.duplicate();
+            }
+        }
+
+        this.misses.incrementAndGet();
+
+        int length = this.storage.getPieceLength(pieceIndex);
+
+        if (length > this.capacity) {
+            return null;
+        }
+
+        // The piece is read without holding the lock, so a miss doesn't block hits on other threads
+        ByteBuffer content = ByteBuffer.allocateDirect(length);
+        this.storage.readPiece(pieceIndex, content);
+        content.flip();
+
+        this.put(pieceIndex, content);
+
+        return content.duplicate();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = this.getHits();
+        long misses = this.getMisses();
+        long lookups = hits + misses;
+
+        return "Piece cache: " + hits + " hits, " + misses + " misses" +
+                (lookups == 0 ? "" : " (" + (100 * hits / lookups) + "% hit rate)");
+    }
+
+
+    /**
+     * Caches a piece, evicting the least recently used pieces to make room for it
+     *
+     * @param pieceIndex   Index of the piece
+     * @param content      Content of the piece, no bigger than the whole budget
+     */
+    private synchronized void put(int pieceIndex, ByteBuffer content) {
+        ByteBuffer previous = this.pieces.put(pieceIndex, content);
+
+        // Another thread might have read the same piece at the same time
+        if (previous != null) {
+            this.size -= previous.capacity();
+        }
+
+        this.size += content.capacity();
+
+        // Evict the least recently used pieces until the cache fits in its budget
+        Iterator<Map.Entry<Integer, ByteBuffer>> iterator = this.pieces.entrySet().iterator();
+
+        while (this.size > this.capacity && iterator.hasNext()) {
+            this.size -= iterator.next().getValue().capacity();
+            iterator.remove();
+        }
+    }
+}
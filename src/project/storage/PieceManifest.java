@@ -0,0 +1,154 @@
+package project.storage;
+
+import project.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class PieceManifest {
+
+    /*
+     * The manifest holds the SHA-256 digest of every piece of the target file, one lowercase hex digest per line,
+     * where line i is the digest of piece i.
+     * It can be generated from a complete file with:
+     *     java project.storage.PieceManifest <target file> <piece size> > PieceManifest.cfg
+     */
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(PieceManifest::newDigest);
+
+    private final byte[][] digests;
+
+    private PieceManifest(byte[][] digests) {
+        this.digests = digests;
+    }
+
+
+    /**
+     * Loads the manifest from the given path
+     *
+     * @param manifestPath   Path to the manifest file
+     * @param config         Configuration the manifest has to match
+     * @return               The loaded manifest, or null if there's no manifest file
+     * @throws IOException   Throws an IOException if the manifest couldn't be read or doesn't match the configuration
+     */
+    public static PieceManifest load(String manifestPath, Configuration config) throws IOException {
+        if (!new File(manifestPath).exists()) {
+            return null;
+        }
+
+        List<String> lines = Files.lines(Paths.get(manifestPath))
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .collect(Collectors.toList());
+
+        if (lines.size() != config.getNumberOfPieces()) {
+            throw new IOException("The piece manifest has " + lines.size() + " digests instead of " +
+                    config.getNumberOfPieces());
+        }
+
+        byte[][] digests = new byte[lines.size()][];
+
+        for (int i = 0; i < lines.size(); i++) {
+            digests[i] = hexToBytes(lines.get(i));
+        }
+
+        return new PieceManifest(digests);
+    }
+
+    /**
+     * Checks whether the given content matches the digest of the piece in the manifest.
+     * This is safe to call from multiple threads at the same time.
+     *
+     * @param pieceIndex   Index of the piece
+     * @param content      Content of the piece. Its position is left untouched
+     * @return             Whether the content matches the digest
+     */
+    public boolean matches(int pieceIndex, ByteBuffer content) {
+        if (pieceIndex < 0 || pieceIndex >= this.digests.length) {
+            return false;
+        }
+
+        return MessageDigest.isEqual(this.digests[pieceIndex], digest(content));
+    }
+
+
+    private static byte[] digest(ByteBuffer content) {
+        MessageDigest messageDigest = DIGEST.get();
+
+        messageDigest.reset();
+        messageDigest.update(content.duplicate());
+
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not supported", exception);
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) throws IOException {
+        if (hex.length() != 64) {
+            throw new IOException("Invalid digest in the piece manifest: " + hex);
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+            if (high < 0 || low < 0) {
+                throw new IOException("Invalid digest in the piece manifest: " + hex);
+            }
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * Prints the manifest of a complete target file
+     *
+     * @param args   Path to the target file and the piece size
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java project.storage.PieceManifest <target file> <piece size>");
+            System.exit(1);
+        }
+
+        int pieceSize = Integer.parseInt(args[1]);
+        byte[] piece = new byte[pieceSize];
+
+        try (RandomAccessFile file = new RandomAccessFile(args[0], "r")) {
+            long remaining = file.length();
+
+            while (remaining > 0) {
+                int length = (int) Math.min(pieceSize, remaining);
+                file.readFully(piece, 0, length);
+                remaining -= length;
+
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest(ByteBuffer.wrap(piece, 0, length))) {
+                    hex.append(String.format("%02x", b));
+                }
+
+                System.out.println(hex);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package project.storage;
+
+import project.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+public class PieceStorage {
+
+    /*
+     * The target file is memory-mapped once, and every piece is exposed as a slice of that mapping, so reading a
+     * piece (to send it) doesn't need a copy on the heap.
+     * A file that is being received is preallocated to its full size before it's mapped, either sparse or fully
+     * allocated (see Preallocation).
+     * A single mapping is limited to 2GB, so the file is mapped in segments, each holding a whole number of pieces.
+     * Received pieces are committed by the DiskWriter as soon as they're accepted, with a single write for every run
+     * of adjacent pieces, so nothing has to be kept in memory (or written) once the transfer is over.
+     */
+
+    // Size of the zero buffer used to fully preallocate the target file
+    private static final int PREALLOCATION_CHUNK_SIZE = 1 << 20;
+
+    private final Configuration config;
+    private final File file;
+    private final boolean readOnly;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final int piecesPerSegment;
+
+    public PieceStorage(File file, Configuration config, boolean readOnly) throws IOException {
+        this.config = config;
+        this.file = file;
+        this.readOnly = readOnly;
+
+        if (readOnly) {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            if (this.channel.size() < this.config.getFileSize()) {
+                this.channel.close();
+                throw new IOException("The local target file is smaller than the configured file size");
+            }
+        } else {
+            this.preallocate(file, this.config.getPreallocation());
+
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        this.piecesPerSegment = Integer.MAX_VALUE / this.config.getPieceSize();
+        // In long, the sum overflows an int when a segment holds Integer.MAX_VALUE pieces
+        this.segments = new MappedByteBuffer[
+                (int) (((long) this.config.getNumberOfPieces() + this.piecesPerSegment - 1) / this.piecesPerSegment)];
+
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+
+        for (int i = 0; i < this.segments.length; i++) {
+            long segmentOffset = this.config.getPieceOffset(i * this.piecesPerSegment);
+            long segmentSize = Math.min((long) this.piecesPerSegment * this.config.getPieceSize(),
+                    this.config.getFileSize() - segmentOffset);
+
+            this.segments[i] = this.channel.map(mode, segmentOffset, segmentSize);
+        }
+    }
+
+
+    /**
+     * Creates the target file if needed and sets its length to the configured file size, before it's mapped.
+     * This way pieces are always written in place, and the file never has to grow while it's being received.
+     * Any leftovers of a previous, bigger file are dropped.
+     *
+     * @param file            Target file
+     * @param preallocation   Whether the new part of the file is left sparse or fully allocated
+     * @throws IOException    Throws an IOException if creating or extending the target file failed
+     */
+    private void preallocate(File file, Preallocation preallocation) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            long currentLength = randomAccessFile.length();
+
+            if (preallocation == Preallocation.FULL && currentLength < this.config.getFileSize()) {
+                // Allocate the blocks of the new part of the file by writing zeros over it. Blocks that already
+                // exist (i.e. pieces of a resumed transfer) are left untouched
+                FileChannel channel = randomAccessFile.getChannel();
+                ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATION_CHUNK_SIZE);
+
+                for (long offset = currentLength; offset < this.config.getFileSize(); ) {
+                    zeros.clear().limit((int) Math.min(zeros.capacity(), this.config.getFileSize() - offset));
+
+                    while (zeros.hasRemaining()) {
+                        offset += channel.write(zeros, offset);
+                    }
+                }
+            }
+
+            randomAccessFile.setLength(this.config.getFileSize());
+        }
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public boolean isReadOnly() {
+        return this.readOnly;
+    }
+
+    public int getPieceLength(int pieceIndex) {
+        return this.config.getPieceLength(pieceIndex);
+    }
+
+    /**
+     * Returns a view of the given piece inside the mapped file. The returned buffer shares its content with the
+     * file, but has its own position and limit.
+     *
+     * @param pieceIndex   Index of the piece
+     * @return             Buffer holding the piece content
+     */
+    public ByteBuffer getPieceView(int pieceIndex) {
+        // Offsets inside a segment always fit in an int
+        int offset = (pieceIndex % this.piecesPerSegment) * this.config.getPieceSize();
+
+        ByteBuffer view = this.segments[pieceIndex / this.piecesPerSegment].duplicate();
+        view.position(offset);
+        view.limit(offset + this.getPieceLength(pieceIndex));
+
+        return view.slice();
+    }
+
+    /**
+     * Commits the content of adjacent pieces to the target file with a single gathering write at the first piece's
+     * offset. This moves the position of the file channel, so it must only be called from a single thread.
+     *
+     * @param firstPieceIndex   Index of the first piece
+     * @param contents          Content of each piece, in order. Their remaining bytes must match the piece lengths
+     * @throws IOException      Throws an IOException if writing into the target file failed
+     */
+    public void writePieces(int firstPieceIndex, ByteBuffer[] contents) throws IOException {
+        if (this.readOnly) {
+            throw new IllegalStateException("Tried to write piece " + firstPieceIndex + " into a read only storage");
+        }
+
+        ByteBuffer[] sources = new ByteBuffer[contents.length];
+        long remaining = 0;
+
+        for (int i = 0; i < contents.length; i++) {
+            int pieceIndex = firstPieceIndex + i;
+
+            if (contents[i].remaining() != this.getPieceLength(pieceIndex)) {
+                throw new IllegalArgumentException("Piece " + pieceIndex + " has " + contents[i].remaining() +
+                        " bytes instead of " + this.getPieceLength(pieceIndex));
+            }
+
+            sources[i] = contents[i].duplicate();
+            remaining += sources[i].remaining();
+        }
+
+        this.channel.position(this.config.getPieceOffset(firstPieceIndex));
+
+        // A gathering write might write less than requested, so keep writing until all pieces are written
+        while (remaining > 0) {
+            remaining -= this.channel.write(sources);
+        }
+    }
+
+    /**
+     * Reads the content of a piece from the target file with a positional read
+     *
+     * @param pieceIndex     Index of the piece
+     * @param target         Buffer to read the piece into. Must have room for the whole piece
+     * @throws IOException   Throws an IOException if reading from the target file failed
+     */
+    public void readPiece(int pieceIndex, ByteBuffer target) throws IOException {
+        if (target.remaining() < this.getPieceLength(pieceIndex)) {
+            throw new IllegalArgumentException("No room for piece " + pieceIndex + " in the given buffer");
+        }
+
+        long offset = this.config.getPieceOffset(pieceIndex);
+        int remaining = this.getPieceLength(pieceIndex);
+
+        // A positional read might read less than requested, so keep reading until the whole piece is read
+        while (remaining > 0) {
+            int read = this.channel.read(target, offset);
+
+            if (read < 0) {
+                throw new IOException("Unexpected end of the target file when reading piece " + pieceIndex);
+            }
+
+            offset += read;
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Sends the content of a piece straight from the target file to the given channel. When the target is a socket,
+     * this is done by the operating system (i.e. sendfile) and the content never goes through the heap.
+     *
+     * @param pieceIndex     Index of the piece
+     * @param target         Channel to send the piece content to
+     * @throws IOException   Throws an IOException if reading the piece or writing into the channel failed
+     */
+    public void transferPiece(int pieceIndex, WritableByteChannel target) throws IOException {
+        this.transferBlock(pieceIndex, 0, this.getPieceLength(pieceIndex), target);
+    }
+
+    /**
+     * Sends a block of a piece straight from the target file to the given channel, see #transferPiece
+     *
+     * @param pieceIndex     Index of the piece
+     * @param blockOffset    Offset of the block in the piece
+     * @param blockLength    Length of the block
+     * @param target         Channel to send the block to
+     * @throws IOException   Throws an IOException if reading the block or writing into the channel failed
+     */
+    public void transferBlock(int pieceIndex, int blockOffset, int blockLength, WritableByteChannel target)
+            throws IOException {
+        long offset = this.config.getPieceOffset(pieceIndex) + blockOffset;
+        long remaining = blockLength;
+
+        // A transfer might send less than requested, so keep transferring until the whole block is sent
+        while (remaining > 0) {
+            long transferred = this.channel.transferTo(offset, remaining, target);
+
+            offset += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    /**
+     * Forces all written pieces to be written to the storage device
+     *
+     * @throws IOException   Throws an IOException if flushing the target file failed
+     */
+    public void flush() throws IOException {
+        if (!this.readOnly) {
+            this.channel.force(false);
+        }
+    }
+
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,102 @@
+package project.storage;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+public class PieceVerifier {
+
+    /*
+     * Received pieces are hashed on a dedicated pool with a thread per core, so verifying pieces never happens on
+     * the LocalPeerManager thread and doesn't limit how fast pieces can be received.
+     * The same pool verifies an existing target file at startup by splitting the pieces between all cores.
+     */
+
+    // Number of pieces below which a startup verification task stops splitting and hashes its pieces itself
+    private static final int VERIFY_BATCH_SIZE = 16;
+
+    private final PieceManifest manifest;
+    private final ForkJoinPool hasherPool;
+
+    public PieceVerifier(PieceManifest manifest) {
+        this.manifest = manifest;
+        this.hasherPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Verifies the content of a piece on the hasher pool
+     *
+     * @param pieceIndex   Index of the piece
+     * @param content      Content of the piece
+     * @param callback     Called from the hasher pool with whether the content matches the manifest
+     */
+    public void verifyAsync(int pieceIndex, ByteBuffer content, Consumer<Boolean> callback) {
+        this.hasherPool.execute(() -> callback.accept(this.manifest.matches(pieceIndex, content)));
+    }
+
+    /**
+     * Verifies pieces of the target file against the manifest, reading them through the mapped file.
+     * The pieces are split between all threads of the hasher pool, and this call blocks until all of them are hashed.
+     *
+     * @param storage      Storage holding the target file
+     * @param candidates   Pieces to verify
+     * @return             Pieces out of the candidates that match the manifest
+     */
+    public BitSet verifyAll(PieceStorage storage, BitSet candidates) {
+        return this.hasherPool.invoke(new VerifyRangeTask(storage, candidates, 0, candidates.length()));
+    }
+
+    public void shutdown() {
+        this.hasherPool.shutdown();
+    }
+
+
+    private class VerifyRangeTask extends RecursiveTask<BitSet> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PieceStorage storage;
+        private final BitSet candidates;
+
+        private final int from;
+        private final int to;
+
+        VerifyRangeTask(PieceStorage storage, BitSet candidates, int from, int to) {
+            this.storage = storage;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected BitSet compute() {
+            // Split the range in half until it's small enough to hash on this thread
+            if (this.to - this.from > VERIFY_BATCH_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+
+                VerifyRangeTask left = new VerifyRangeTask(this.storage, this.candidates, this.from, middle);
+                VerifyRangeTask right = new VerifyRangeTask(this.storage, this.candidates, middle, this.to);
+
+                left.fork();
+                BitSet verified = right.compute();
+                verified.or(left.join());
+
+                return verified;
+            }
+
+            BitSet verified = new BitSet();
+
+            for (int i = this.candidates.nextSetBit(this.from); i >= 0 && i < this.to;
+                 i = this.candidates.nextSetBit(i + 1)) {
+                if (manifest.matches(i, this.storage.getPieceView(i))) {
+                    verified.set(i);
+                }
+            }
+
+            return verified;
+        }
+    }
+}
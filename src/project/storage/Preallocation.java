@@ -0,0 +1,28 @@
+package project.storage;
+
+public enum Preallocation {
+
+    // The target file is extended to its full size without allocating its blocks, which are allocated as pieces are
+    // written into them
+    SPARSE,
+    // Every block of the target file is allocated up front by writing zeros, so writing pieces at random offsets
+    // never allocates blocks or fragments the file
+    FULL;
+
+
+    /**
+     * Given the name of a preallocation mode (case insensitive), return a matching Preallocation object
+     *
+     * @param name   Name of the preallocation mode
+     * @return       Preallocation object matching the given name
+     */
+    public static Preallocation fromName(String name) {
+        for (Preallocation preallocation : Preallocation.values()) {
+            if (preallocation.name().equalsIgnoreCase(name)) {
+                return preallocation;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown preallocation mode " + name);
+    }
+}
@@ -16,7 +16,8 @@ public enum Tag {
     PEER_CONNECTION_MANAGER("PEER_CONNECTION_MANAGER", false),
     HANDLER("HANDLER", true),
     LISTENER("LISTENER", false),
-    SENDER("SENDER", false);
+    SENDER("SENDER", false),
+    SELECTOR("SELECTOR", false);
 
 
     private String tag;